@@ -97,13 +97,15 @@ public class DatabaseBenchmarkTest {
         });
 
 
-        final double light = measureThroughput(roundCycles, () -> {
+        final Runnable lightSetup = () -> {
             mDatabaseLight.command("CREATE TABLE Benchmark (Cycle, Entry)");
-        }, () -> {
+        };
+        final Runnable lightReset = () -> {
             mDatabaseLight.command("DROP TABLE Benchmark");
-        }, (cycle) -> {
+        };
+        final IntConsumer lightOperation = (cycle) -> {
             mDatabaseLight.beginTransactionExclusive();
-            try (com.darkyen.sqlitelite.SQLiteStatement statement = mDatabaseLight.statement("INSERT INTO Benchmark (Cycle, Entry) VALUES (?, ?)")) {
+            try (com.darkyen.sqlitelite.SQLiteStatement statement = mDatabaseLight.cachedStatement("INSERT INTO Benchmark (Cycle, Entry) VALUES (?, ?)")) {
                 for (int i = 0; i < 10; i++) {
                     statement.bind(1, cycle);
                     statement.bind(2, i);
@@ -113,12 +115,48 @@ public class DatabaseBenchmarkTest {
             } finally {
                 mDatabaseLight.endTransaction();
             }
+        };
+
+        // Same as lightOperation, but binds through the standard JNI natives, which the statement uses only before API 26
+        final double lightStandardJni = measureThroughput(roundCycles, lightSetup, lightReset, (cycle) -> {
+            mDatabaseLight.beginTransactionExclusive();
+            try (com.darkyen.sqlitelite.SQLiteStatement statement = mDatabaseLight.cachedStatement("INSERT INTO Benchmark (Cycle, Entry) VALUES (?, ?)")) {
+                final long connectionPtr = mDatabaseLight.connectionPtr();
+                final long statementPtr = statement.rawStatementPtr();
+                for (int i = 0; i < 10; i++) {
+                    SQLiteNative.nativeBindLong(connectionPtr, statementPtr, 1, cycle);
+                    SQLiteNative.nativeBindLong(connectionPtr, statementPtr, 2, i);
+                    statement.executeForNothing();
+                }
+                mDatabaseLight.setTransactionSuccessful();
+            } finally {
+                mDatabaseLight.endTransaction();
+            }
+        });
+        final double light = measureThroughput(roundCycles, lightSetup, lightReset, lightOperation);
+
+        final ParameterBatch batch = new ParameterBatch(2);
+        final double lightBatch = measureThroughput(roundCycles, lightSetup, lightReset, (cycle) -> {
+            mDatabaseLight.beginTransactionExclusive();
+            try (com.darkyen.sqlitelite.SQLiteStatement statement = mDatabaseLight.statement("INSERT INTO Benchmark (Cycle, Entry) VALUES (?, ?)")) {
+                batch.clear();
+                for (int i = 0; i < 10; i++) {
+                    batch.add(cycle).add(i);
+                }
+                statement.executeBatch(batch);
+                mDatabaseLight.setTransactionSuccessful();
+            } finally {
+                mDatabaseLight.endTransaction();
+            }
         });
 
         System.out.println("WRITE BENCHMARK RESULTS");
         System.out.printf("%10s: %10.2f transactions/second%n", "Android", android);
         System.out.printf("%10s: %10.2f transactions/second%n", "Requery", requery);
-        System.out.printf("%10s: %10.2f transactions/second%n", "Light", light);
+        System.out.printf("%10s: %10.2f transactions/second (standard JNI only)%n", "Light", lightStandardJni);
+        System.out.printf("%10s: %10.2f transactions/second (critical natives %s)%n", "Light", light,
+                SQLiteNative.CRITICAL_NATIVES_REGISTERED ? "enabled" : "not supported");
+        System.out.printf("%10s: %10.2f transactions/second (executeBatch)%n", "Light", lightBatch);
         /*
             Android:    3302.85 transactions/second
             Requery:    5631.59 transactions/second
@@ -243,12 +281,31 @@ public class DatabaseBenchmarkTest {
                 Assert.assertEquals(i, entries);
             }
         });
+        final byte[] blobBuffer = new byte[blob.length];
+        final double lightReusedBuffer = measureThroughput(roundCycles, () -> {}, () -> {}, (cycle) -> {
+            try (com.darkyen.sqlitelite.SQLiteStatement cursor = mDatabaseLight.statement("SELECT Entry1, Entry2, Entry3 FROM Benchmark ORDER BY ROWID")) {
+                int i = 0;
+                while (cursor.cursorNextRow()) {
+                    final long entry1 = cursor.cursorGetLong(0);
+                    final String entry2 = cursor.cursorGetString(1);
+                    final int entry3Length = cursor.cursorGetBlob(2, blobBuffer, 0);
+                    Assert.assertEquals(i, entry1);
+                    //noinspection DataFlowIssue
+                    assertTrue(entry2.startsWith("RESOLUTION"));
+                    Assert.assertEquals(blob.length, entry3Length);
+                    Assert.assertEquals(blob[2], blobBuffer[2]);
+                    i++;
+                }
+                Assert.assertEquals(i, entries);
+            }
+        });
         mDatabaseLight.command("DROP TABLE Benchmark");
 
         System.out.println("READ BIG BENCHMARK RESULTS");
         System.out.printf("%10s: %10.2f reads/second%n", "Android", android);
         System.out.printf("%10s: %10.2f reads/second%n", "Requery", requery);
         System.out.printf("%10s: %10.2f reads/second%n", "Light", light);
+        System.out.printf("%10s: %10.2f reads/second (reused blob buffer)%n", "Light", lightReusedBuffer);
         /*
             Android:       0.47 reads/second
             Requery:       0.51 reads/second
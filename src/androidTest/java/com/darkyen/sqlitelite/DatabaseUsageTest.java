@@ -1,7 +1,9 @@
 package com.darkyen.sqlitelite;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import org.junit.After;
@@ -10,12 +12,17 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -283,6 +290,559 @@ public class DatabaseUsageTest {
         }
     }
 
+    @Test
+    public void utf8StringTest() {
+        final String[] texts = {"", "ascii", "P\u0159\u00EDli\u0161 \u017Elu\u0165ou\u010Dk\u00FD k\u016F\u0148", "\u65E5\u672C\u8A9E", "emoji \uD83D\uDE00 end", longString(1000)};
+        mDatabase.command("CREATE TABLE Texts (Id INTEGER PRIMARY KEY, Text)");
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Texts (Id, Text) VALUES (?, ?)")) {
+            for (int i = 0; i < texts.length; i++) {
+                s.bind(1, i);
+                s.bind(2, texts[i]);
+                s.executeForNothing();
+            }
+            s.bind(1, texts.length);
+            s.bind(2, (String) null);
+            s.executeForNothing();
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        try (SQLiteStatement s = mDatabase.statement("SELECT Text FROM Texts ORDER BY Id")) {
+            for (String text : texts) {
+                assertTrue(s.cursorNextRow());
+                assertEquals(text, s.cursorGetString(0));
+                sb.setLength(0);
+                assertTrue(s.cursorGetString(0, sb));
+                assertEquals(text, sb.toString());
+            }
+            assertTrue(s.cursorNextRow());
+            assertNull(s.cursorGetString(0));
+            sb.setLength(0);
+            assertFalse(s.cursorGetString(0, sb));
+            assertEquals(0, sb.length());
+            assertFalse(s.cursorNextRow());
+        }
+
+        try (SQLiteStatement s = mDatabase.statement("SELECT Text FROM Texts WHERE Id = 4")) {
+            assertEquals(texts[4], s.executeForString());
+        }
+
+        // Malformed UTF-8 is replaced
+        try (SQLiteStatement s = mDatabase.statement("SELECT CAST(X'41FF42E282' AS TEXT)")) {
+            assertEquals("A\uFFFDB\uFFFD", s.executeForString());
+            assertTrue(s.cursorNextRow());
+            sb.setLength(0);
+            assertTrue(s.cursorGetString(0, sb));
+            assertEquals("A\uFFFDB\uFFFD", sb.toString());
+        }
+    }
+
+    private static String longString(int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + i % 26));
+            if (i % 100 == 0) sb.append('\u017E');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void utf8MalformedTest() {
+        // Native (cursorGetString(int)) and Java (cursorGetString(int, StringBuilder)) decoders must agree
+        final StringBuilder longHex = new StringBuilder();
+        final StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            longHex.append("41F09F98");
+            longText.append("A\uFFFD");
+        }
+        final String[][] cases = {
+                {"80BF41", "\uFFFD\uFFFDA"},// Stray continuation bytes
+                {"F09F9841", "\uFFFDA"},// Truncated 4-byte sequence
+                {"41F09F98", "A\uFFFD"},// Truncated at the end
+                {"F09F9880", "\uD83D\uDE00"},// Complete 4-byte sequence
+                {"EDA080EDB080", "\uFFFD\uFFFD"},// Encoded surrogate pair
+                {"EDBFBF", "\uFFFD"},// Encoded low surrogate
+                {"C0AFE080AF", "\uFFFD\uFFFD"},// Overlong encodings
+                {"F4908080", "\uFFFD"},// Above U+10FFFF
+                {"F888808080", "\uFFFD\uFFFD\uFFFD\uFFFD\uFFFD"},// Invalid lead byte
+                {longHex.toString(), longText.toString()},// Longer than the stack and scratch buffers
+        };
+        final StringBuilder sb = new StringBuilder();
+        for (String[] c : cases) {
+            try (SQLiteStatement s = mDatabase.statement("SELECT CAST(X'" + c[0] + "' AS TEXT)")) {
+                assertTrue(s.cursorNextRow());
+                final String nativeDecoded = s.cursorGetString(0);
+                sb.setLength(0);
+                assertTrue(s.cursorGetString(0, sb));
+                assertEquals(c[0], c[1], nativeDecoded);
+                assertEquals(c[0], nativeDecoded, sb.toString());
+                s.cursorReset();
+            }
+        }
+    }
+
+    @Test
+    public void blobIntoBufferTest() {
+        mDatabase.command("CREATE TABLE Blobs (Id INTEGER PRIMARY KEY, Data)");
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Blobs (Id, Data) VALUES (?, ?)")) {
+            s.bind(1, 1);
+            s.bind(2, new byte[]{1, 2, 3, 4, 5});
+            s.executeForNothing();
+            s.bind(1, 2);
+            s.bind(2, (byte[]) null);
+            s.executeForNothing();
+            s.bind(1, 3);
+            s.bind(2, new byte[0]);
+            s.executeForNothing();
+        }
+
+        try (SQLiteStatement s = mDatabase.statement("SELECT Data FROM Blobs ORDER BY Id")) {
+            assertTrue(s.cursorNextRow());
+            assertEquals(5, s.cursorGetBlobLength(0));
+
+            final byte[] array = new byte[8];
+            assertEquals(5, s.cursorGetBlob(0, array, 2));
+            assertArrayEquals(new byte[]{0, 0, 1, 2, 3, 4, 5, 0}, array);
+            final byte[] small = new byte[6];
+            assertEquals(5, s.cursorGetBlob(0, small, 2));
+            assertArrayEquals(new byte[6], small);
+
+            for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocateDirect(8), ByteBuffer.allocate(8)}) {
+                buffer.position(1);
+                assertEquals(5, s.cursorGetBlob(0, buffer));
+                assertEquals(6, buffer.position());
+                assertEquals(5, s.cursorGetBlob(0, buffer));// Does not fit
+                assertEquals(6, buffer.position());
+                buffer.flip().position(1);
+                for (int i = 1; i <= 5; i++) {
+                    assertEquals(i, buffer.get());
+                }
+            }
+
+            assertTrue(s.cursorNextRow());
+            assertEquals(-1, s.cursorGetBlobLength(0));
+            assertEquals(-1, s.cursorGetBlob(0, array, 0));
+            assertEquals(-1, s.cursorGetBlob(0, ByteBuffer.allocateDirect(4)));
+
+            assertTrue(s.cursorNextRow());
+            assertEquals(0, s.cursorGetBlobLength(0));
+            assertEquals(0, s.cursorGetBlob(0, array, 8));
+            assertFalse(s.cursorNextRow());
+        }
+    }
+
+    @Test
+    public void bindBufferTest() {
+        mDatabase.command("CREATE TABLE Blobs (Id INTEGER PRIMARY KEY, Data)");
+        final byte[] bytes = {1, 2, 3, 4, 5, 6};
+        final ByteBuffer direct = ByteBuffer.allocateDirect(6);
+        direct.put(bytes).position(2);
+        final ByteBuffer heap = ByteBuffer.wrap(bytes, 1, 3).slice();
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Blobs (Id, Data) VALUES (?, ?)")) {
+            s.bind(1, 1);
+            s.bind(2, bytes, 2, 3);
+            s.executeForNothing();
+            s.bind(1, 2);
+            s.bind(2, direct);
+            s.executeForNothing();
+            s.bind(1, 3);
+            s.bind(2, heap);
+            s.executeForNothing();
+            s.bind(1, 4);
+            s.bind(2, heap.asReadOnlyBuffer());
+            s.executeForNothing();
+            s.bind(1, 5);
+            s.bind(2, (ByteBuffer) null);
+            s.executeForNothing();
+            s.clearBindings();
+
+            assertThrows(IndexOutOfBoundsException.class, () -> s.bind(2, bytes, 4, 3));
+            assertThrows(IndexOutOfBoundsException.class, () -> s.bind(2, bytes, -1, 1));
+        }
+        assertEquals(2, direct.position());
+
+        try (SQLiteStatement s = mDatabase.statement("SELECT Data FROM Blobs ORDER BY Id")) {
+            assertTrue(s.cursorNextRow());
+            assertArrayEquals(new byte[]{3, 4, 5}, s.cursorGetBlob(0));
+            assertTrue(s.cursorNextRow());
+            assertArrayEquals(new byte[]{3, 4, 5, 6}, s.cursorGetBlob(0));
+            assertTrue(s.cursorNextRow());
+            assertArrayEquals(new byte[]{2, 3, 4}, s.cursorGetBlob(0));
+            assertTrue(s.cursorNextRow());
+            assertArrayEquals(new byte[]{2, 3, 4}, s.cursorGetBlob(0));
+            assertTrue(s.cursorNextRow());
+            assertNull(s.cursorGetBlob(0));
+            assertFalse(s.cursorNextRow());
+        }
+    }
+
+    @Test
+    public void blobHandleTest() {
+        final int size = 200_000;
+        mDatabase.command("CREATE TABLE Blobs (Id INTEGER PRIMARY KEY, Data)");
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Blobs (Id, Data) VALUES (?, zeroblob(?))")) {
+            s.bind(1, 1);
+            s.bind(2, size);
+            s.executeForNothing();
+            s.bind(1, 2);
+            s.bind(2, 10);
+            s.executeForNothing();
+        }
+
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        try (SQLiteBlob blob = mDatabase.openBlob("Blobs", "Data", 1, true)) {
+            assertEquals(size, blob.size());
+            blob.write(0, data, 0, size / 2);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(size - size / 2);
+            direct.put(data, size / 2, size - size / 2).flip();
+            blob.write(size / 2, direct);
+            assertEquals(0, direct.remaining());
+
+            assertThrows(SQLiteException.class, () -> blob.write(size - 1, new byte[2], 0, 2));
+            assertThrows(IndexOutOfBoundsException.class, () -> blob.write(0, new byte[2], 1, 2));
+        }
+
+        try (SQLiteBlob blob = mDatabase.openBlob("main", "Blobs", "Data", 1, false)) {
+            final byte[] read = new byte[size];
+            blob.read(0, read, 0, size);
+            assertArrayEquals(data, read);
+
+            final ByteBuffer direct = ByteBuffer.allocateDirect(100);
+            blob.read(1000, direct);
+            assertEquals(100, direct.position());
+            final ByteBuffer heap = ByteBuffer.allocate(100);
+            blob.read(1000, heap);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(data[1000 + i], direct.get(i));
+                assertEquals(data[1000 + i], heap.get(i));
+            }
+            assertThrows(SQLiteException.class, () -> blob.write(0, new byte[1], 0, 1));
+
+            blob.reopen(2);
+            assertEquals(10, blob.size());
+            blob.read(0, read, 0, 10);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(0, read[i]);
+            }
+        }
+
+        assertThrows(SQLiteException.class, () -> mDatabase.openBlob("Blobs", "Data", 3, false));
+
+        // Closed together with the connection
+        final SQLiteBlob blob = mDatabase.openBlob("Blobs", "Data", 2, false);
+        mDatabase.close();
+        assertThrows(IllegalStateException.class, blob::size);
+        blob.close();
+    }
+
+    @Test
+    public void executeBatchTest() {
+        mDatabase.command("CREATE TABLE Stuff (Id INTEGER PRIMARY KEY, Text, Data, Real)");
+        final ParameterBatch batch = new ParameterBatch(3, 16);
+        final int rows = 200;
+        for (int i = 0; i < rows; i++) {
+            batch.add(i % 5 == 0 ? null : "Text " + i).add(new byte[i % 11]);
+            if (i % 3 == 0) {
+                batch.addNull();
+            } else {
+                batch.add(i + 0.5);
+            }
+        }
+        assertEquals(rows, batch.rowCount());
+
+        final long[] rowIDs = new long[rows];
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Stuff (Text, Data, Real) VALUES (?, ?, ?)")) {
+            s.executeBatchForRowIDs(batch, rowIDs);
+        }
+        for (int i = 0; i < rows; i++) {
+            assertEquals(i + 1, rowIDs[i]);
+        }
+
+        try (SQLiteStatement s = mDatabase.statement("SELECT Text, Data, Real FROM Stuff ORDER BY Id")) {
+            for (int i = 0; i < rows; i++) {
+                assertTrue(s.cursorNextRow());
+                assertEquals(i % 5 == 0 ? null : "Text " + i, s.cursorGetString(0));
+                assertEquals(i % 11, s.cursorGetBlob(1).length);
+                assertEquals(i % 3 == 0 ? 0.0 : i + 0.5, s.cursorGetDouble(2), 0.0);
+            }
+            assertFalse(s.cursorNextRow());
+        }
+
+        final ParameterBatch updates = new ParameterBatch(1);
+        updates.add(1).add(rows + 10).add(2);
+        final long[] changed = new long[updates.rowCount()];
+        try (SQLiteStatement s = mDatabase.statement("UPDATE Stuff SET Real = 0 WHERE Id = ?")) {
+            s.executeBatchForChangedRowCounts(updates, changed);
+        }
+        assertArrayEquals(new long[]{1, 0, 1}, changed);
+
+        // Results before a failure are still stored
+        final ParameterBatch failing = new ParameterBatch(1);
+        failing.add(rows + 1).add(rows + 2).add(1).add(rows + 3);
+        final long[] failingRowIDs = new long[failing.rowCount()];
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Stuff (Id) VALUES (?)")) {
+            assertThrows(SQLiteConstraintException.class, () -> s.executeBatchForRowIDs(failing, failingRowIDs));
+            assertArrayEquals(new long[]{rows + 1, rows + 2, 0, 0}, failingRowIDs);
+
+            failing.clear();
+            failing.add(rows + 3);
+            s.executeBatch(failing);
+        }
+        try (SQLiteStatement s = mDatabase.statement("SELECT COUNT(*) FROM Stuff")) {
+            assertEquals(rows + 3, s.executeForLong(-1));
+        }
+
+        final ParameterBatch incomplete = new ParameterBatch(2);
+        incomplete.add(1);
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Stuff (Id, Text) VALUES (?, ?)")) {
+            assertThrows(IllegalArgumentException.class, () -> s.executeBatch(incomplete));
+        }
+    }
+
+    @Test
+    public void cursorBatchTest() {
+        mDatabase.command("CREATE TABLE Stuff (Id, Text, Data, Real)");
+        final int rows = 100;
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Stuff (Id, Text, Data, Real) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < rows; i++) {
+                s.bind(1, i);
+                s.bind(2, i % 7 == 0 ? null : "Text " + i);
+                s.bind(3, new byte[i % 13]);
+                s.bind(4, i + 0.5);
+                s.executeForNothing();
+            }
+        }
+
+        final RowWindow window = new RowWindow(1024, 30);
+        try (SQLiteStatement s = mDatabase.statement("SELECT Id, Text, Data, Real FROM Stuff ORDER BY Id")) {
+            for (int repeat = 0; repeat < 2; repeat++) {
+                int i = 0;
+                boolean mixed = false;
+                while (s.cursorNextBatch(window)) {
+                    assertEquals(4, window.columnCount());
+                    assertTrue(window.rowCount() <= 30);
+                    for (int r = 0; r < window.rowCount(); r++, i++) {
+                        assertEquals(RowWindow.TYPE_INTEGER, window.getType(r, 0));
+                        assertEquals(i, window.getLong(r, 0));
+                        if (i % 7 == 0) {
+                            assertTrue(window.isNull(r, 1));
+                            assertNull(window.getString(r, 1));
+                        } else {
+                            assertEquals("Text " + i, window.getString(r, 1));
+                        }
+                        assertEquals(i % 13, window.getBlob(r, 2).length);
+                        assertEquals(i + 0.5, window.getDouble(r, 3), 0.0);
+                    }
+
+                    // Mixing with ordinary row iteration
+                    if (!mixed && i >= 50) {
+                        mixed = true;
+                        assertTrue(s.cursorNextRow());
+                        assertEquals(i, s.cursorGetLong(0));
+                        i++;
+                    }
+                }
+                assertEquals(rows, i);
+                assertFalse(s.cursorNextBatch(window));
+                assertEquals(0, window.rowCount());
+                s.cursorReset();
+            }
+        }
+
+        try (SQLiteStatement s = mDatabase.statement("SELECT zeroblob(1000)")) {
+            assertThrows(SQLiteException.class, () -> s.cursorNextBatch(window));
+            s.cursorReset();
+            assertTrue(s.cursorNextBatch(new RowWindow(2048)));
+        }
+    }
+
+    @Test
+    public void cursorRowIntoTest() {
+        mDatabase.command("CREATE TABLE Stuff (Int, Real, Text, Data, Nothing)");
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Stuff (Int, Real, Text, Data, Nothing) VALUES (?, ?, ?, ?, NULL)")) {
+            s.bind(1, 5L);
+            s.bind(2, 6.5);
+            s.bind(3, "Seven");
+            s.bind(4, new byte[] {8});
+            s.executeForNothing();
+        }
+
+        try (SQLiteStatement s = mDatabase.statement("SELECT Int, Real, Text, Data, Nothing FROM Stuff")) {
+            assertEquals(5, s.columnCount());
+            final long[] longs = new long[5];
+            final double[] doubles = new double[5];
+            final Object[] refs = new Object[5];
+            assertTrue(s.cursorNextRowInto(longs, doubles, refs));
+            assertArrayEquals(new long[] {5L, 6L, 0L, 0L, 0L}, longs);
+            assertEquals(5.0, doubles[0], 0.0);
+            assertEquals(6.5, doubles[1], 0.0);
+            assertEquals(0.0, doubles[4], 0.0);
+            assertArrayEquals(new Object[] {null, null, "Seven", new byte[] {8}, null}, refs);
+            // Row stays current
+            assertEquals("Seven", s.cursorGetString(2));
+            assertFalse(s.cursorNextRowInto(longs, doubles, refs));
+            s.cursorReset();
+
+            // Partial and missing arrays
+            final long[] shortLongs = new long[1];
+            assertTrue(s.cursorNextRowInto(shortLongs, null, null));
+            assertEquals(5L, shortLongs[0]);
+            s.cursorReset();
+        }
+    }
+
+    @Test
+    public void criticalNativesErrorTest() {
+        mDatabase.command("CREATE TABLE Test (Col UNIQUE)");
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Test (Col) VALUES (?)")) {
+            assertThrows(SQLiteException.class, () -> s.bind(2, 5L));
+            assertThrows(SQLiteException.class, () -> s.bind(2, 5.0));
+            s.bind(1, 5L);
+            s.executeForNothing();
+            assertThrows(SQLiteConstraintException.class, s::executeForNothing);
+            s.bind(1, 6.0);
+            s.executeForNothing();
+        }
+        try (SQLiteStatement s = mDatabase.statement("SELECT Col, 0 FROM Test ORDER BY Col")) {
+            assertTrue(s.cursorNextRow());
+            assertEquals(5L, s.cursorGetLong(0));
+            assertEquals(0L, s.cursorGetLong(1));
+            assertThrows(SQLiteException.class, () -> s.cursorGetLong(2));
+            assertThrows(SQLiteException.class, () -> s.cursorGetDouble(2));
+            assertTrue(s.cursorNextRow());
+            assertEquals(6.0, s.cursorGetDouble(0), 0.0);
+            assertFalse(s.cursorNextRow());
+            s.cursorReset();
+            s.clearBindings();
+        }
+    }
+
+    @Test
+    public void criticalGettersColumnCountTest() {
+        mDatabase.command("CREATE TABLE Test (Col)");
+        mDatabase.command("INSERT INTO Test (Col) VALUES (0)");
+        try (SQLiteStatement s = mDatabase.statement("SELECT * FROM Test")) {
+            assertTrue(s.cursorNextRow());
+            assertEquals(0L, s.cursorGetLong(0));
+            assertEquals(0.0, s.cursorGetDouble(0), 0.0);
+            assertThrows(SQLiteException.class, () -> s.cursorGetLong(1));
+            s.cursorReset();
+
+            // Statement is reprepared with more columns
+            mDatabase.command("ALTER TABLE Test ADD COLUMN Extra DEFAULT 7");
+            assertTrue(s.cursorNextRow());
+            assertEquals(7L, s.cursorGetLong(1));
+            assertEquals(7.0, s.cursorGetDouble(1), 0.0);
+            s.cursorReset();
+        }
+    }
+
+    @Test
+    public void tryExecuteTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Name UNIQUE NOT NULL)");
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Test (Id, Name) VALUES (?, ?)")) {
+            s.bind(1, 1);
+            s.bind(2, "a");
+            assertEquals(SQLiteConnection.SQLITE_OK, s.tryExecuteForNothing());
+            assertEquals(SQLiteConnection.SQLITE_CONSTRAINT_PRIMARYKEY, s.tryExecuteForNothing());
+            s.bind(1, 2);
+            assertEquals(SQLiteConnection.SQLITE_CONSTRAINT_UNIQUE, s.tryExecuteForNothing());
+            s.bind(2, (String) null);
+            final int notNull = s.tryExecuteForNothing();
+            assertEquals(SQLiteConnection.SQLITE_CONSTRAINT_NOTNULL, notNull);
+            assertEquals(SQLiteConnection.SQLITE_CONSTRAINT, notNull & 0xFF);
+            s.bind(2, "b");
+            assertEquals(SQLiteConnection.SQLITE_OK, s.tryExecuteForNothing());
+        }
+        try (SQLiteStatement s = mDatabase.statement("UPDATE Test SET Name = ? WHERE Id = 1")) {
+            s.bind(1, "b");
+            assertEquals(-SQLiteConnection.SQLITE_CONSTRAINT_UNIQUE, s.tryExecuteForChangedRowCount());
+            s.bind(1, "c");
+            assertEquals(1, s.tryExecuteForChangedRowCount());
+        }
+        try (SQLiteStatement s = mDatabase.statement("SELECT Id FROM Test")) {
+            assertEquals(SQLiteConnection.SQLITE_ROW, s.tryExecuteForNothing());
+        }
+        // Statement remains usable after failures and throwing still works
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Test (Id, Name) VALUES (1, 'x')")) {
+            assertThrows(SQLiteConstraintException.class, s::executeForNothing);
+        }
+    }
+
+    @Test
+    public void prepareFlagsTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+        try (SQLiteStatement s = mDatabase.statement("INSERT INTO Test (Value) VALUES (?)", SQLiteConnection.SQLITE_PREPARE_PERSISTENT)) {
+            for (int i = 0; i < 10; i++) {
+                s.bind(1, i);
+                s.executeForNothing();
+            }
+        }
+        try (SQLiteStatement s = mDatabase.statement("SELECT SUM(Value) FROM Test",
+                SQLiteConnection.SQLITE_PREPARE_PERSISTENT | SQLiteConnection.SQLITE_PREPARE_NO_VTAB)) {
+            assertEquals(45, s.executeForLong(-1));
+        }
+        assertThrows(SQLiteException.class, () -> mDatabase.statement("SELECT name FROM pragma_table_info('Test')", SQLiteConnection.SQLITE_PREPARE_NO_VTAB));
+    }
+
+    @Test
+    public void statementCacheTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+        final SQLiteStatement insert;
+        try (SQLiteStatement s = mDatabase.cachedStatement("INSERT INTO Test (Id, Value) VALUES (?, ?)")) {
+            insert = s;
+            s.bind(1, 1);
+            s.bind(2, "one");
+            s.executeForNothing();
+        }
+        try (SQLiteStatement s = mDatabase.cachedStatement("INSERT INTO Test (Id, Value) VALUES (?, ?)")) {
+            assertSame(insert, s);
+            // Bindings were cleared
+            s.bind(1, 2);
+            s.executeForNothing();
+
+            // Borrowed twice at the same time
+            try (SQLiteStatement s2 = mDatabase.cachedStatement("INSERT INTO Test (Id, Value) VALUES (?, ?)")) {
+                assertNotSame(s, s2);
+            }
+        }
+        try (SQLiteStatement s = mDatabase.cachedStatement("SELECT Value FROM Test ORDER BY Id")) {
+            assertTrue(s.cursorNextRow());
+            assertEquals("one", s.cursorGetString(0));
+            // Returned to the cache in the middle of cursor iteration
+        }
+        try (SQLiteStatement s = mDatabase.cachedStatement("SELECT Value FROM Test ORDER BY Id")) {
+            assertTrue(s.cursorNextRow());
+            assertEquals("one", s.cursorGetString(0));
+            assertTrue(s.cursorNextRow());
+            assertNull(s.cursorGetString(0));
+            assertFalse(s.cursorNextRow());
+        }
+
+        // Eviction
+        mDatabase.setStatementCacheSize(2);
+        final SQLiteStatement[] statements = new SQLiteStatement[3];
+        for (int i = 0; i < statements.length; i++) {
+            try (SQLiteStatement s = mDatabase.cachedStatement("SELECT " + i)) {
+                statements[i] = s;
+                assertEquals(i, s.executeForLong(-1));
+            }
+        }
+        assertThrows(IllegalStateException.class, () -> statements[0].executeForLong(-1));
+        try (SQLiteStatement s = mDatabase.cachedStatement("SELECT 2")) {
+            assertSame(statements[2], s);
+        }
+
+        mDatabase.setStatementCacheSize(0);
+        assertThrows(IllegalStateException.class, () -> statements[2].executeForLong(-1));
+        try (SQLiteStatement s = mDatabase.cachedStatement("SELECT 1")) {
+            statements[1] = s;
+        }
+        assertThrows(IllegalStateException.class, () -> statements[1].executeForLong(-1));
+    }
+
     @Test
     public void interruptTest() {
         mDatabase.command("CREATE TABLE Test (Col)");
@@ -311,4 +871,410 @@ public class DatabaseUsageTest {
             assertEquals("value", s.cursorGetString(0));
         }
     }
+
+    @Test
+    public void sharedStatementTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+        final SharedStatement insert = new SharedStatement("INSERT INTO Test (Value) VALUES (?)");
+        final SharedStatement select = new SharedStatement("SELECT Value FROM Test ORDER BY Id");
+
+        final SQLiteStatement first = insert.on(mDatabase);
+        assertSame(first, insert.on(mDatabase));
+        first.bind(1, "one");
+        first.executeForNothing();
+
+        try (SQLiteConnection other = SQLiteConnection.open(mDatabaseFile.getPath(), SQLiteConnection.SQLITE_OPEN_READWRITE)) {
+            final SQLiteStatement otherInsert = insert.on(other);
+            assertNotSame(first, otherInsert);
+            assertSame(otherInsert, insert.on(other));
+            otherInsert.bind(1, "two");
+            otherInsert.executeForNothing();
+
+            // Left in cursor mode, reset on next use
+            final SQLiteStatement otherSelect = select.on(other);
+            assertTrue(otherSelect.cursorNextRow());
+            assertEquals("one", otherSelect.cursorGetString(0));
+            assertTrue(select.on(other).cursorNextRow());
+            assertEquals("one", otherSelect.cursorGetString(0));
+            assertTrue(otherSelect.cursorNextRow());
+            assertEquals("two", otherSelect.cursorGetString(0));
+        }
+
+        // Closed statements are prepared again
+        first.close();
+        final SQLiteStatement reprepared = insert.on(mDatabase);
+        assertNotSame(first, reprepared);
+        reprepared.bind(1, "three");
+        reprepared.executeForNothing();
+        assertEquals(3, mDatabase.statement("SELECT COUNT(*) FROM Test").executeForLong(-1));
+    }
+
+    @Test
+    public void savepointTest() {
+        mDatabase.command("CREATE TABLE Test (Value)");
+        final SQLiteStatement insert = mDatabase.statement("INSERT INTO Test (Value) VALUES (?)");
+        final SQLiteStatement count = mDatabase.statement("SELECT COUNT(*) FROM Test");
+
+        assertThrows(IllegalStateException.class, mDatabase::savepoint);
+
+        mDatabase.beginTransactionImmediate();
+        try {
+            insert.bind(1, 1);
+            insert.executeForNothing();
+
+            mDatabase.savepoint();
+            insert.bind(1, 2);
+            insert.executeForNothing();
+            mDatabase.rollbackToSavepoint();
+            assertEquals(1, count.executeForLong(-1));
+            insert.bind(1, 3);
+            insert.executeForNothing();
+            mDatabase.releaseSavepoint();
+            assertThrows(IllegalStateException.class, mDatabase::releaseSavepoint);
+
+            // Unsuccessful nested transaction rolls back only its changes
+            mDatabase.beginTransactionDeferred();
+            try {
+                insert.bind(1, 4);
+                insert.executeForNothing();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            assertEquals(2, count.executeForLong(-1));
+
+            // Successful nested transaction keeps its changes
+            mDatabase.beginTransactionExclusive();
+            try {
+                insert.bind(1, 5);
+                insert.executeForNothing();
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            assertEquals(3, count.executeForLong(-1));
+
+            // Savepoints and nested transactions must end in reverse order
+            mDatabase.savepoint();
+            mDatabase.beginTransactionDeferred();
+            assertThrows(IllegalStateException.class, mDatabase::releaseSavepoint);
+            assertThrows(IllegalStateException.class, mDatabase::rollbackToSavepoint);
+            insert.bind(1, 6);
+            insert.executeForNothing();
+            mDatabase.endTransaction();
+            assertEquals(3, count.executeForLong(-1));
+            mDatabase.beginTransactionDeferred();
+            mDatabase.savepoint();
+            insert.bind(1, 7);
+            insert.executeForNothing();
+            mDatabase.setTransactionSuccessful();
+            assertThrows(IllegalStateException.class, mDatabase::endTransaction);
+            mDatabase.releaseSavepoint();
+            mDatabase.endTransaction();
+            mDatabase.releaseSavepoint();
+            assertEquals(4, count.executeForLong(-1));
+
+            mDatabase.setTransactionSuccessful();
+            assertThrows(IllegalStateException.class, mDatabase::beginTransactionImmediate);
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        try (SQLiteStatement sum = mDatabase.statement("SELECT SUM(Value) FROM Test")) {
+            assertEquals(1 + 3 + 5 + 7, sum.executeForLong(-1));
+        }
+    }
+
+    @Test
+    public void rowPublisherTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+        try (SQLiteStatement insert = mDatabase.statement("INSERT INTO Test (Id, Value) VALUES (?, ?)")) {
+            for (int i = 1; i <= 10; i++) {
+                insert.bind(1, i);
+                if (i % 2 == 0) {
+                    insert.bind(2, "text " + i);
+                } else {
+                    insert.bind(2, i * 0.5);
+                }
+                insert.executeForNothing();
+            }
+        }
+
+        final SQLiteStatement select = mDatabase.statement("SELECT Id, Value FROM Test ORDER BY Id");
+        final ArrayList<SQLiteRowPublisher.Row> rows = new ArrayList<>();
+        final SQLiteFlow.Subscription[] subscription = new SQLiteFlow.Subscription[1];
+        final boolean[] completed = {false};
+        final SQLiteFlow.Subscriber<SQLiteRowPublisher.Row> subscriber = new SQLiteFlow.Subscriber<SQLiteRowPublisher.Row>() {
+            @Override
+            public void onSubscribe(SQLiteFlow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(SQLiteRowPublisher.Row item) {
+                rows.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throw new AssertionError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        };
+
+        final SQLiteRowPublisher publisher = new SQLiteRowPublisher(select, Runnable::run, 4);
+        publisher.subscribe(subscriber);
+        assertEquals(0, rows.size());
+        subscription[0].request(3);
+        assertEquals(3, rows.size());
+        assertEquals(1, rows.get(0).getLong(0));
+        assertEquals(0.5, rows.get(0).getDouble(1), 0.0);
+        assertEquals("text 2", rows.get(1).getString(1));
+        subscription[0].request(5);
+        assertEquals(8, rows.size());
+        assertFalse(completed[0]);
+        subscription[0].request(Long.MAX_VALUE);
+        assertEquals(10, rows.size());
+        assertTrue(completed[0]);
+        assertEquals(10, rows.get(9).getLong(0));
+
+        // Statement was reset and can be published again, cancel resets it too
+        rows.clear();
+        completed[0] = false;
+        new SQLiteRowPublisher(select, Runnable::run, 100).subscribe(subscriber);
+        subscription[0].request(2);
+        subscription[0].cancel();
+        subscription[0].request(2);
+        assertEquals(2, rows.size());
+        assertFalse(completed[0]);
+        assertTrue(select.cursorNextRow());
+        assertEquals(1, select.cursorGetLong(0));
+        select.cursorReset();
+
+        // Cancel in onNext and failing onNext stop the delivery in the middle of a fetched window
+        for (boolean failing : new boolean[]{false, true}) {
+            final int[] delivered = {0};
+            new SQLiteRowPublisher(select, Runnable::run, 100).subscribe(new SQLiteFlow.Subscriber<SQLiteRowPublisher.Row>() {
+                private SQLiteFlow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(SQLiteFlow.Subscription s) {
+                    subscription = s;
+                    s.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(SQLiteRowPublisher.Row item) {
+                    if (++delivered[0] < 2) return;
+                    if (failing) throw new IllegalStateException("Subscriber failure");
+                    subscription.cancel();
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    throw new AssertionError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    throw new AssertionError("Completed after cancel");
+                }
+            });
+            assertEquals(2, delivered[0]);
+        }
+        assertTrue(select.cursorNextRow());
+        select.cursorReset();
+    }
+
+    @Test
+    public void statementStatsTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+        try (SQLiteStatement insert = mDatabase.statement("INSERT INTO Test (Value) VALUES (?)")) {
+            for (int i = 0; i < 100; i++) {
+                insert.bind(1, 100 - i);
+                insert.executeForNothing();
+            }
+            assertEquals(100, insert.stats().runs);
+        }
+
+        try (SQLiteStatement scan = mDatabase.statement("SELECT Id FROM Test WHERE Value > ? ORDER BY Value")) {
+            scan.bind(1, 50);
+            assertEquals(0, scan.stats().runs);
+            assertEquals(50, scan.executeForLong(-1));
+
+            final SQLiteStatementStats stats = scan.stats(true);
+            assertEquals(1, stats.runs);
+            assertTrue(stats.fullscanSteps >= 99);
+            assertEquals(1, stats.sorts);
+            assertTrue(stats.vmSteps > 0);
+            assertTrue(stats.memoryUsed > 0);
+
+            final SQLiteStatementStats afterReset = scan.stats();
+            assertEquals(0, afterReset.runs);
+            assertEquals(0, afterReset.fullscanSteps);
+            assertEquals(0, afterReset.sorts);
+            assertTrue(afterReset.memoryUsed > 0);
+        }
+    }
+
+    @Test
+    public void connectionStatusTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+        try (SQLiteStatement insert = mDatabase.statement("INSERT INTO Test (Value) VALUES (?)")) {
+            for (int i = 0; i < 100; i++) {
+                insert.bind(1, i);
+                insert.executeForNothing();
+            }
+        }
+        try (SQLiteStatement select = mDatabase.statement("SELECT SUM(Value) FROM Test")) {
+            assertEquals(4950, select.executeForLong(-1));
+
+            final SQLiteConnectionStatus status = mDatabase.status(true);
+            assertTrue(status.cacheHits > 0);
+            assertTrue(status.cacheWrites > 0);
+            assertTrue(status.cacheMemoryUsed > 0);
+            assertTrue(status.schemaMemoryUsed > 0);
+            assertTrue(status.statementMemoryUsed > 0);
+
+            final SQLiteConnectionStatus afterReset = mDatabase.status();
+            assertEquals(0, afterReset.cacheHits);
+            assertEquals(0, afterReset.cacheWrites);
+            assertTrue(afterReset.cacheMemoryUsed > 0);
+        }
+    }
+
+    @Test
+    public void memoryStatsTest() {
+        // SQLite was initialized with memory accounting off when the test database was opened,
+        // the enabled path is covered by MemoryStatsTest
+        assertThrows(IllegalStateException.class, () -> SQLiteRuntime.setMemoryStatusEnabled(true));
+        assertFalse(SQLiteRuntime.isMemoryStatusEnabled());
+        assertThrows(IllegalStateException.class, SQLiteRuntime::memoryStats);
+    }
+
+    @Test
+    public void profileTest() {
+        mDatabase.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+        mDatabase.setProfiling(4);
+        try (SQLiteStatement insert = mDatabase.statement("INSERT INTO Test (Value) VALUES (?)");
+             SQLiteStatement select = mDatabase.statement("SELECT COUNT(*) FROM Test")) {
+            assertEquals("SELECT COUNT(*) FROM Test", select.sql());
+
+            insert.bind(1, 1);
+            insert.executeForNothing();
+            assertEquals(1, select.executeForLong(-1));
+
+            final ArrayList<SQLiteStatement> profiled = new ArrayList<>();
+            final SQLiteConnection.ProfileSink sink = (statement, nanos) -> {
+                assertTrue(nanos >= 0);
+                profiled.add(statement);
+            };
+            assertEquals(0, mDatabase.drainProfile(sink));
+            assertEquals(2, profiled.size());
+            assertSame(insert, profiled.get(0));
+            assertSame(select, profiled.get(1));
+
+            profiled.clear();
+            assertEquals(0, mDatabase.drainProfile(sink));
+            assertEquals(0, profiled.size());
+
+            // Only the newest executions are kept when the buffer overflows
+            for (int i = 0; i < 10; i++) {
+                select.executeForLong(-1);
+            }
+            assertEquals(6, mDatabase.drainProfile(sink));
+            assertEquals(4, profiled.size());
+
+            // Executions of closed statements are not attributed to any statement
+            profiled.clear();
+            try (SQLiteStatement closed = mDatabase.statement("SELECT 1")) {
+                assertEquals(1, closed.executeForLong(-1));
+            }
+            assertEquals(0, mDatabase.drainProfile(sink));
+            assertEquals(1, profiled.size());
+            assertNull(profiled.get(0));
+
+            mDatabase.setProfiling(0);
+            select.executeForLong(-1);
+            assertEquals(0, mDatabase.drainProfile(sink));
+            assertEquals(1, profiled.size());
+        }
+    }
+
+    @Test
+    public void slowQueryTest() {
+        final ArrayList<SQLiteSlowQuery> slowQueries = new ArrayList<>();
+        mDatabase.setSlowQueryListener(50_000_000L, slowQueries::add);
+        try (SQLiteStatement slow = mDatabase.statement("WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM c WHERE x < ?) SELECT COUNT(*) FROM c");
+             SQLiteStatement fast = mDatabase.statement("SELECT 1")) {
+            slow.bind(1, 3_000_000);
+            assertEquals(3_000_000, slow.executeForLong(-1));
+            assertEquals(1, fast.executeForLong(-1));
+            assertEquals(3_000_000, slow.executeForLong(-1));
+            assertEquals(0, slowQueries.size());// Not reported yet
+
+            mDatabase.reportSlowQueries();
+            assertEquals(2, slowQueries.size());
+            final SQLiteSlowQuery first = slowQueries.get(0);
+            assertEquals(slow.sql(), first.sql);
+            assertNotNull(first.expandedSql);
+            assertTrue(first.expandedSql.contains("3000000"));
+            assertTrue(first.nanos >= 50_000_000L);
+            assertTrue(first.stats.vmSteps > 0);
+            assertNotNull(first.queryPlan);
+            assertFalse(first.queryPlan.isEmpty());
+            // Plan is generated only once
+            assertSame(first.queryPlan, slowQueries.get(1).queryPlan);
+
+            slowQueries.clear();
+            mDatabase.setSlowQueryListener(0, null);
+            assertEquals(3_000_000, slow.executeForLong(-1));
+            mDatabase.reportSlowQueries();
+            assertEquals(0, slowQueries.size());
+        }
+    }
+
+    @Test
+    public void queryBudgetTest() {
+        try (SQLiteStatement count = mDatabase.statement("WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM c WHERE x < ?) SELECT COUNT(*) FROM c")) {
+            mDatabase.setQueryBudget(20_000_000L);
+            count.bind(1, 1_000_000_000L);
+            final long start = System.nanoTime();
+            assertThrows(SQLiteInterruptedException.class, () -> count.executeForLong(-1));
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+
+            // Short executions are not affected
+            count.bind(1, 100);
+            assertEquals(100, count.executeForLong(-1));
+
+            mDatabase.setQueryBudget(0);
+            count.bind(1, 1_000_000);
+            assertEquals(1_000_000, count.executeForLong(-1));
+
+            mDatabase.setDeadline(System.nanoTime() - 1);
+            assertThrows(SQLiteInterruptedException.class, () -> count.executeForLong(-1));
+            mDatabase.clearDeadline();
+            assertEquals(1_000_000, count.executeForLong(-1));
+        }
+    }
+
+    @Test
+    public void queryBudgetCommentedStatementTest() throws InterruptedException {
+        try (SQLiteStatement count = mDatabase.statement("-- Counts to the bound number\nWITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM c WHERE x < ?) SELECT COUNT(*) FROM c")) {
+            mDatabase.setQueryBudget(50_000_000L);
+            count.bind(1, 10_000);
+            for (int i = 0; i < 3; i++) {
+                // Each execution has its own budget, regardless of the time spent between them
+                Thread.sleep(100);
+                assertEquals(10_000, count.executeForLong(-1));
+            }
+
+            count.bind(1, 1_000_000_000L);
+            assertThrows(SQLiteInterruptedException.class, () -> count.executeForLong(-1));
+            mDatabase.setQueryBudget(0);
+        }
+    }
 }
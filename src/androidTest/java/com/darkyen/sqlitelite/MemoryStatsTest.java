@@ -0,0 +1,110 @@
+package com.darkyen.sqlitelite;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Memory accounting can only be enabled before SQLite is initialized, so these tests rely on the test orchestrator
+ * to run each of them in a fresh process. Without it, they are skipped when another test initialized SQLite first.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MemoryStatsTest {
+
+    private File mDatabaseFile;
+    private SQLiteConnection mDatabase;
+
+    @Before
+    public void setUp() {
+        try {
+            SQLiteRuntime.setMemoryStatusEnabled(true);
+        } catch (IllegalStateException e) {
+            assumeTrue("SQLite was initialized by an earlier test in this process", SQLiteRuntime.isMemoryStatusEnabled());
+        }
+
+        File dbDir = ApplicationProvider.getApplicationContext().getDir(this.getClass().getName(), Context.MODE_PRIVATE);
+        mDatabaseFile = new File(dbDir, "database_test.db");
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+
+        final SQLiteDelegate delegate = new SQLiteDelegate(mDatabaseFile) {
+            @Override
+            public void onCreate(SQLiteConnection db) {
+                // About 1 MB, well beyond the initial bulk allocation of the page cache
+                db.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+                db.command("WITH RECURSIVE N(I) AS (SELECT 1 UNION ALL SELECT I + 1 FROM N WHERE I < 256) " +
+                        "INSERT INTO Test (Value) SELECT randomblob(4000) FROM N");
+            }
+        };
+        mDatabase = SQLiteConnection.open(delegate);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDatabase != null) {
+            mDatabase.close();
+            SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        }
+    }
+
+    private SQLiteMemoryStats scanWithStats() {
+        SQLiteMemoryStats stats = null;
+        try (SQLiteStatement select = mDatabase.statement("SELECT length(Value) FROM Test")) {
+            int rows = 0;
+            while (select.cursorNextRow()) {
+                assertEquals(4000, select.cursorGetLong(0));
+                // Taken while the read transaction holds the whole table in the page cache
+                if (++rows == 256) stats = SQLiteRuntime.memoryStats();
+            }
+            assertEquals(256, rows);
+        }
+        return stats;
+    }
+
+    @Test
+    public void memoryStatsOrderTest() {
+        final SQLiteMemoryStats stats = scanWithStats();
+        final long pageSize = Long.parseLong(mDatabase.pragma("PRAGMA page_size"));
+
+        // Byte and allocation counts: each allocation takes at least a few bytes
+        assertTrue(stats.toString(), stats.mallocCount > 0);
+        assertTrue(stats.toString(), stats.memoryUsed > stats.mallocCount);
+        assertTrue(stats.toString(), stats.memoryUsedHighwater >= stats.memoryUsed);
+        assertTrue(stats.toString(), stats.mallocCountHighwater >= stats.mallocCount);
+        assertTrue(stats.toString(), stats.largestMalloc > 0 && stats.largestMalloc <= stats.memoryUsedHighwater);
+
+        // No preallocated page cache memory is configured, so every page cache allocation overflows
+        assertEquals(stats.toString(), 0, stats.pageCacheUsed);
+        assertEquals(stats.toString(), 0, stats.pageCacheUsedHighwater);
+        assertTrue(stats.toString(), stats.pageCacheOverflow > 0);
+        assertTrue(stats.toString(), stats.pageCacheOverflowHighwater >= stats.pageCacheOverflow);
+        assertTrue(stats.toString(), stats.largestPageCacheAllocation >= pageSize);
+        assertTrue(stats.toString(), stats.largestPageCacheAllocation <= stats.largestMalloc);
+    }
+
+    @Test
+    public void memoryStatsResetTest() {
+        scanWithStats();
+        mDatabase.close();
+        mDatabase = null;
+
+        final SQLiteMemoryStats beforeReset = SQLiteRuntime.memoryStats(true);
+        assertTrue(beforeReset.toString(), beforeReset.memoryUsedHighwater > beforeReset.memoryUsed);
+        assertTrue(beforeReset.toString(), beforeReset.pageCacheOverflowHighwater > beforeReset.pageCacheOverflow);
+
+        final SQLiteMemoryStats afterReset = SQLiteRuntime.memoryStats();
+        assertTrue(afterReset.toString(), afterReset.memoryUsedHighwater < beforeReset.memoryUsedHighwater);
+        assertTrue(afterReset.toString(), afterReset.pageCacheOverflowHighwater < beforeReset.pageCacheOverflowHighwater);
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+    }
+}
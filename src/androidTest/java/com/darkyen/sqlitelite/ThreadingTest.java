@@ -1,7 +1,10 @@
 package com.darkyen.sqlitelite;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteException;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.filters.Suppress;
@@ -11,12 +14,21 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Random;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -232,4 +244,370 @@ public class ThreadingTest {
         conn1.close();
         conn2.close();
     }
+
+    @Test
+    public void connectionPoolTest() throws Throwable {
+        try (SQLiteConnectionPool pool = SQLiteConnectionPool.open(delegate, 4)) {
+            assertEquals(4, pool.readerCount());
+            pool.withWriter(connection -> {
+                connection.command("CREATE TABLE Counter (Value INTEGER NOT NULL)");
+                connection.command("INSERT INTO Counter VALUES (0)");
+                return null;
+            });
+
+            final int increments = 50;
+            final Thread[] readers = new Thread[8];
+            final Throwable[] failure = new Throwable[1];
+            final Thread writer = new Thread(() -> {
+                for (int i = 0; i < increments; i++) {
+                    pool.withWriter(connection -> {
+                        try (SQLiteStatement update = connection.cachedStatement("UPDATE Counter SET Value = Value + 1")) {
+                            update.executeForNothing();
+                        }
+                        return null;
+                    });
+                }
+            }, "pool writer");
+            for (int t = 0; t < readers.length; t++) {
+                readers[t] = new Thread(() -> {
+                    long lastSeenValue = 0;
+                    while (lastSeenValue < increments) {
+                        final long value = pool.withReader(connection -> {
+                            try (SQLiteStatement select = connection.cachedStatement("SELECT Value FROM Counter")) {
+                                return select.executeForLong(-1);
+                            }
+                        });
+                        assertTrue(value >= lastSeenValue);
+                        lastSeenValue = value;
+                    }
+                }, "pool reader " + t);
+            }
+
+            final Thread.UncaughtExceptionHandler handler = (thread, e) -> {
+                synchronized (failure) {
+                    if (failure[0] == null) failure[0] = e;
+                }
+            };
+            writer.setUncaughtExceptionHandler(handler);
+            writer.start();
+            for (Thread reader : readers) {
+                reader.setUncaughtExceptionHandler(handler);
+                reader.start();
+            }
+            writer.join();
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            if (failure[0] != null) throw failure[0];
+
+            // Readers are read-only
+            pool.withReader(connection -> {
+                try {
+                    connection.command("INSERT INTO Counter VALUES (1)");
+                    fail("Reader connection should not be writable");
+                } catch (SQLiteException expected) {}
+                return null;
+            });
+
+            // Connections must not be returned in a transaction
+            final SQLiteConnection leased = pool.leaseWriter(1, TimeUnit.SECONDS);
+            leased.beginTransactionImmediate();
+            leased.command("UPDATE Counter SET Value = -1");
+            try {
+                pool.release(leased);
+                fail("Release in transaction should fail");
+            } catch (IllegalStateException expected) {}
+            assertEquals(increments, (long) pool.withReader(connection -> {
+                try (SQLiteStatement select = connection.cachedStatement("SELECT Value FROM Counter")) {
+                    return select.executeForLong(-1);
+                }
+            }));
+
+            // Only one writer at a time
+            final SQLiteConnection leasedAgain = pool.leaseWriter(1, TimeUnit.SECONDS);
+            try {
+                pool.leaseWriter(10, TimeUnit.MILLISECONDS);
+                fail("Writer should be leased");
+            } catch (SQLiteDatabaseLockedException expected) {
+            } finally {
+                pool.release(leasedAgain);
+            }
+
+            // Second release must fail even when there is room for it among the idle readers
+            final SQLiteConnection reader = pool.leaseReader(1, TimeUnit.SECONDS);
+            pool.release(reader);
+            assertThrows(IllegalStateException.class, () -> pool.release(reader));
+            final HashSet<SQLiteConnection> leasedReaders = new HashSet<>();
+            for (int i = 0; i < pool.readerCount(); i++) {
+                assertTrue(leasedReaders.add(pool.leaseReader(1, TimeUnit.SECONDS)));
+            }
+            assertThrows(SQLiteDatabaseLockedException.class, () -> pool.leaseReader(10, TimeUnit.MILLISECONDS));
+            for (SQLiteConnection leasedReader : leasedReaders) {
+                pool.release(leasedReader);
+            }
+        }
+    }
+
+    @Test
+    public void connectionPoolCloseTest() throws Exception {
+        final SQLiteConnectionPool pool = SQLiteConnectionPool.open(delegate, 1);
+        final SQLiteConnection writer = pool.leaseWriter(1, TimeUnit.SECONDS);
+        final Throwable[] failure = new Throwable[1];
+        final Thread waiter = new Thread(() -> {
+            try {
+                pool.release(pool.leaseWriter(30, TimeUnit.SECONDS));
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "pool waiter");
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+
+        // Waiting lease fails right away, not after its timeout
+        final long closeStart = System.nanoTime();
+        pool.close();
+        waiter.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(waiter.isAlive());
+        assertTrue(System.nanoTime() - closeStart < TimeUnit.SECONDS.toNanos(10));
+        assertTrue(String.valueOf(failure[0]), failure[0] instanceof IllegalStateException);
+
+        assertThrows(IllegalStateException.class, () -> pool.leaseReader(1, TimeUnit.SECONDS));
+        pool.release(writer);// Closes it
+        assertThrows(IllegalStateException.class, () -> writer.command("SELECT 1"));
+    }
+
+    @Test
+    public void writeQueueTest() throws Exception {
+        try (SQLiteConnection connection = SQLiteConnection.open(delegate)) {
+            connection.command("CREATE TABLE Log (Id INTEGER PRIMARY KEY, Value TEXT NOT NULL)");
+
+            final int threadCount = 4;
+            final int tasksPerThread = 100;
+            final ArrayList<Future<Long>> futures = new ArrayList<>();
+            final Future<Long> failing;
+            try (SQLiteWriteQueue queue = new SQLiteWriteQueue(connection, 5, TimeUnit.MILLISECONDS, 64)) {
+                final Thread[] threads = new Thread[threadCount];
+                for (int t = 0; t < threadCount; t++) {
+                    final int thread = t;
+                    threads[t] = new Thread(() -> {
+                        for (int i = 0; i < tasksPerThread; i++) {
+                            final String value = thread + ":" + i;
+                            final Future<Long> future = queue.submit(c -> {
+                                try (SQLiteStatement insert = c.cachedStatement("INSERT INTO Log (Value) VALUES (?)")) {
+                                    insert.bind(1, value);
+                                    return insert.executeForRowID();
+                                }
+                            });
+                            synchronized (futures) {
+                                futures.add(future);
+                            }
+                        }
+                    }, "submit thread " + t);
+                    threads[t].start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+
+                // Failure of one task does not affect the others
+                failing = queue.submit(c -> {
+                    try (SQLiteStatement insert = c.cachedStatement("INSERT INTO Log (Value) VALUES (?)")) {
+                        insert.bind(1, "rolled back");
+                        insert.executeForNothing();
+                        insert.bindNull(1);
+                        return insert.executeForRowID();
+                    }
+                });
+            }
+
+            final HashSet<Long> rowIds = new HashSet<>();
+            for (Future<Long> future : futures) {
+                assertTrue(future.isDone());
+                assertTrue(rowIds.add(future.get()));
+            }
+            try {
+                failing.get();
+                fail("Task should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SQLiteConstraintException);
+            }
+
+            try (SQLiteStatement count = connection.statement("SELECT COUNT(*) FROM Log")) {
+                assertEquals(threadCount * tasksPerThread, count.executeForLong(-1));
+            }
+        }
+    }
+
+    @Test
+    public void busyHandlerTest() {
+        try (SQLiteConnection conn1 = SQLiteConnection.open(delegate);
+             SQLiteConnection conn2 = SQLiteConnection.open(delegate)) {
+            conn1.beginTransactionImmediate();
+            try {
+                conn2.setBusyHandler(SQLiteBusyHandler.FAIL_IMMEDIATELY);
+                assertThrows(SQLiteDatabaseLockedException.class, conn2::beginTransactionImmediate);
+                assertEquals(1, conn2.busyInvocations());
+                assertEquals(0, conn2.busyWaitNanos());
+
+                conn2.setBusyHandler(SQLiteBusyHandler.exponentialBackoff(1, 5, 50, TimeUnit.MILLISECONDS));
+                assertThrows(SQLiteDatabaseLockedException.class, conn2::beginTransactionImmediate);
+                assertTrue(conn2.busyInvocations() > 2);
+                assertTrue(conn2.busyWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+
+                final long invocations = conn2.busyInvocations();
+                conn2.setBusyHandler(SQLiteBusyHandler.spinThenYield(100, 10, TimeUnit.MILLISECONDS));
+                assertThrows(SQLiteDatabaseLockedException.class, conn2::beginTransactionImmediate);
+                assertTrue(conn2.busyInvocations() > invocations + 100);
+            } finally {
+                conn1.endTransaction();
+            }
+            assertEquals(0, conn1.busyInvocations());
+
+            conn2.beginTransactionImmediate();
+            conn2.endTransaction();
+        }
+    }
+
+    @Test
+    public void runInTransactionTest() throws InterruptedException {
+        try (SQLiteConnection conn1 = SQLiteConnection.open(delegate);
+             SQLiteConnection conn2 = SQLiteConnection.open(delegate)) {
+            conn1.command("CREATE TABLE Counter (Value)");
+            conn1.command("INSERT INTO Counter (Value) VALUES (0)");
+            final SQLiteStatement select = conn2.statement("SELECT Value FROM Counter");
+            final SQLiteStatement update = conn2.statement("UPDATE Counter SET Value = ?");
+
+            // Another connection writes after this deferred transaction started reading, upgrade fails with SQLITE_BUSY_SNAPSHOT
+            final int[] attempts = {0};
+            final long result = conn2.runInTransaction(SQLiteConnection.TransactionMode.DEFERRED, connection -> {
+                final long value = select.executeForLong(-1);
+                if (attempts[0]++ == 0) {
+                    conn1.command("UPDATE Counter SET Value = Value + 10");
+                }
+                update.bind(1, value + 1);
+                update.executeForNothing();
+                return value + 1;
+            });
+            assertEquals(2, attempts[0]);
+            assertEquals(11, result);
+
+            // Retried until the other connection releases its lock
+            conn2.setBusyHandler(SQLiteBusyHandler.FAIL_IMMEDIATELY);
+            conn1.beginTransactionImmediate();
+            final Thread unlock = new Thread(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {}
+                conn1.endTransaction();
+            });
+            unlock.start();
+            conn2.runInTransaction(SQLiteConnection.TransactionMode.IMMEDIATE, 100, connection -> {
+                update.bind(1, 100);
+                update.executeForNothing();
+                return null;
+            });
+            unlock.join();
+            assertTrue(conn2.busyInvocations() > 1);
+            assertEquals(100, select.executeForLong(-1));
+
+            // Out of attempts
+            conn1.beginTransactionImmediate();
+            try {
+                assertThrows(SQLiteDatabaseLockedException.class, () -> conn2.runInTransaction(SQLiteConnection.TransactionMode.IMMEDIATE, 3, connection -> null));
+            } finally {
+                conn1.endTransaction();
+            }
+
+            // Failure rolls back
+            assertThrows(IllegalStateException.class, () -> conn2.runInTransaction(SQLiteConnection.TransactionMode.IMMEDIATE, connection -> {
+                update.bind(1, -1);
+                update.executeForNothing();
+                throw new IllegalStateException("rollback");
+            }));
+            assertEquals(100, select.executeForLong(-1));
+        }
+    }
+
+    @Test
+    public void asyncConnectionTest() throws Exception {
+        try (SQLiteAsyncConnection async = SQLiteAsyncConnection.open(delegate)) {
+            async.command("CREATE TABLE Test (Id INTEGER PRIMARY KEY, Value)");
+            final Future<Long> first = async.executeForRowID("INSERT INTO Test (Value) VALUES (?)", "one");
+            final Future<Long> second = async.executeForRowID("INSERT INTO Test (Value) VALUES (?)", 2);
+            assertEquals(2L, (long) second.get());
+            assertEquals(1L, (long) first.get());
+            assertEquals("one", async.executeForString("SELECT Value FROM Test WHERE Id = ?", 1).get());
+            assertEquals("wal", async.pragma("PRAGMA journal_mode").get());
+
+            // Callbacks
+            final Semaphore done = new Semaphore(0);
+            final Object[] callbackResult = new Object[1];
+            async.submit(connection -> {
+                try (SQLiteStatement s = connection.statement("SELECT COUNT(*) FROM Test")) {
+                    return s.executeForLong(-1);
+                }
+            }, new SQLiteAsyncConnection.Callback<Long>() {
+                @Override
+                public void onSuccess(Long result) {
+                    callbackResult[0] = result;
+                    done.release();
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    callbackResult[0] = error;
+                    done.release();
+                }
+            });
+            done.acquire();
+            assertEquals(2L, callbackResult[0]);
+
+            // Cancelling a running operation interrupts it
+            final CountDownLatch running = new CountDownLatch(1);
+            final Future<Long> endless = async.submit(connection -> {
+                try (SQLiteStatement s = connection.statement("WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM c) SELECT x FROM c")) {
+                    long rows = 0;
+                    while (s.cursorNextRow()) {
+                        // The statement stays active between rows, so the interrupt can't miss it
+                        if (rows++ == 0) running.countDown();
+                    }
+                    return rows;
+                }
+            });
+            final Future<Long> pending = async.executeForLong("SELECT 1", -1);
+            final Future<Long> cancelledPending = async.executeForLong("SELECT 2", -1);
+            assertTrue(cancelledPending.cancel(false));
+            running.await();
+            assertFalse(endless.cancel(true));// Outcome is not known until the operation ends
+            assertThrows(CancellationException.class, endless::get);
+            assertTrue(endless.isCancelled());
+            assertEquals(1L, (long) pending.get());
+            assertThrows(CancellationException.class, cancelledPending::get);
+
+            // Operation which survives the interrupt is not reported as cancelled
+            final CountDownLatch survivorRunning = new CountDownLatch(1);
+            final Future<Long> survivor = async.submit(connection -> {
+                try (SQLiteStatement s = connection.statement("WITH RECURSIVE c(x) AS (SELECT 1 UNION ALL SELECT x + 1 FROM c) SELECT x FROM c")) {
+                    while (s.cursorNextRow()) {
+                        survivorRunning.countDown();
+                    }
+                } catch (SQLiteInterruptedException expected) {}
+                return 42L;
+            });
+            survivorRunning.await();
+            assertFalse(survivor.cancel(true));
+            assertEquals(42L, (long) survivor.get());
+            assertFalse(survivor.isCancelled());
+
+            // Errors
+            try {
+                async.command("INSERT INTO Missing VALUES (1)").get();
+                fail("Should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SQLiteException);
+            }
+        }
+    }
 }
@@ -0,0 +1,131 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A reusable off-heap buffer of parameter values for multiple executions of the same statement,
+ * which are all executed at once by {@link SQLiteStatement#executeBatch(ParameterBatch)}.
+ * <p>
+ * Values are added row by row, each row consists of exactly {@link #parameterCount()} values,
+ * which are bound to parameters 1 to {@link #parameterCount()}.
+ * <pre>
+ * batch.add(id).add(name);
+ * batch.add(otherId).addNull();
+ * </pre>
+ * Not thread safe.
+ */
+public final class ParameterBatch {
+    /* Layout must be kept in sync with SQLiteNative.cpp
+     * Each value is a tag byte, followed by the payload:
+     * INTEGER and FLOAT: 8 bytes, TEXT and BLOB: int length in bytes, followed by the data (TEXT as UTF-16), NULL: nothing */
+    private static final byte TAG_INTEGER = 1;
+    private static final byte TAG_FLOAT = 2;
+    private static final byte TAG_TEXT = 3;
+    private static final byte TAG_BLOB = 4;
+    private static final byte TAG_NULL = 5;
+
+    private final int parameterCount;
+    ByteBuffer buffer;
+    private int valueCount = 0;
+
+    /**
+     * @param parameterCount amount of values in each row, must be positive
+     * @param initialCapacityBytes initial size of the off-heap buffer, it grows as needed
+     */
+    public ParameterBatch(int parameterCount, int initialCapacityBytes) {
+        if (parameterCount <= 0) throw new IllegalArgumentException("parameterCount must be positive");
+        this.parameterCount = parameterCount;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(initialCapacityBytes, 64)).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Create a batch with room for about 256 rows of numbers.
+     * @see #ParameterBatch(int, int)
+     */
+    public ParameterBatch(int parameterCount) {
+        this(parameterCount, parameterCount * 9 * 256);
+    }
+
+    /** @return amount of values in each row */
+    public int parameterCount() {
+        return parameterCount;
+    }
+
+    /** @return amount of complete rows in the batch */
+    public int rowCount() {
+        return valueCount / parameterCount;
+    }
+
+    /** @return true if the last row has all of its values */
+    boolean isComplete() {
+        return valueCount % parameterCount == 0;
+    }
+
+    /** @return amount of bytes used in the buffer */
+    int size() {
+        return buffer.position();
+    }
+
+    /** Remove all values, keeping the buffer for reuse. */
+    public void clear() {
+        buffer.clear();
+        valueCount = 0;
+    }
+
+    private ByteBuffer ensureCapacity(int bytes) {
+        ByteBuffer buffer = this.buffer;
+        if (buffer.remaining() < bytes) {
+            final int required = buffer.position() + bytes;
+            final ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(required, buffer.capacity() * 2)).order(ByteOrder.nativeOrder());
+            buffer.flip();
+            newBuffer.put(buffer);
+            this.buffer = buffer = newBuffer;
+        }
+        valueCount++;
+        return buffer;
+    }
+
+    /** Add NULL as the next value. */
+    public ParameterBatch addNull() {
+        ensureCapacity(1).put(TAG_NULL);
+        return this;
+    }
+
+    /** Add 1 or 0 as the next value. */
+    public ParameterBatch add(boolean value) {
+        return add(value ? 1L : 0L);
+    }
+
+    /** Add long as the next value. */
+    public ParameterBatch add(long value) {
+        ensureCapacity(9).put(TAG_INTEGER).putLong(value);
+        return this;
+    }
+
+    /** Add double as the next value. */
+    public ParameterBatch add(double value) {
+        ensureCapacity(9).put(TAG_FLOAT).putDouble(value);
+        return this;
+    }
+
+    /** Add String or null as the next value. */
+    public ParameterBatch add(@Nullable String value) {
+        if (value == null) return addNull();
+        final int length = value.length();
+        final ByteBuffer buffer = ensureCapacity(5 + length * 2).put(TAG_TEXT).putInt(length * 2);
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(value.charAt(i));
+        }
+        return this;
+    }
+
+    /** Add byte[] or null as the next value. */
+    public ParameterBatch add(@Nullable byte[] value) {
+        if (value == null) return addNull();
+        ensureCapacity(5 + value.length).put(TAG_BLOB).putInt(value.length).put(value);
+        return this;
+    }
+}
@@ -0,0 +1,182 @@
+package com.darkyen.sqlitelite;
+
+import android.database.sqlite.SQLiteException;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+
+/**
+ * A reusable off-heap buffer for multiple cursor rows,
+ * which are all fetched at once by {@link SQLiteStatement#cursorNextBatch(RowWindow)}.
+ * <p>
+ * Values are stored in their storage class (see {@link #getType(int, int)}) and
+ * only INTEGER and FLOAT are converted between each other when read.
+ * NULL is read as 0, 0.0 or null. Reading TEXT or BLOB as a number or vice versa throws {@link SQLiteException}.
+ * <p>
+ * The window contents are valid until it is filled again.
+ * Not thread safe.
+ */
+public final class RowWindow {
+    /* Layout must be kept in sync with SQLiteNative.cpp */
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_ROW_COUNT = 0;
+    private static final int HEADER_COLUMN_COUNT = 4;
+    private static final int CELL_SIZE = 16;
+    private static final int CELL_TYPE = 0;
+    private static final int CELL_LENGTH = 4;
+    private static final int CELL_VALUE = 8;
+
+    static final int STATUS_MORE = 0;
+    static final int STATUS_DONE = 1;
+    static final int STATUS_PENDING = 2;
+
+    public static final int TYPE_INTEGER = 1;
+    public static final int TYPE_FLOAT = 2;
+    public static final int TYPE_TEXT = 3;
+    public static final int TYPE_BLOB = 4;
+    public static final int TYPE_NULL = 5;
+
+    final ByteBuffer buffer;
+    final int maxRows;
+    private final CharBuffer charView;
+    private final ByteBuffer byteView;
+    private char[] charScratch = new char[64];
+
+    private int rowCount = 0;
+    private int columnCount = 0;
+
+    /**
+     * @param capacityBytes size of the off-heap buffer, each row takes 16 bytes per column plus the size of TEXT and BLOB values
+     * @param maxRows maximum amount of rows to fetch at once
+     */
+    public RowWindow(int capacityBytes, int maxRows) {
+        if (capacityBytes < HEADER_SIZE) throw new IllegalArgumentException("capacityBytes must be at least " + HEADER_SIZE);
+        if (maxRows <= 0) throw new IllegalArgumentException("maxRows must be positive");
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes).order(ByteOrder.nativeOrder());
+        this.maxRows = maxRows;
+        this.charView = buffer.asCharBuffer();
+        this.byteView = buffer.duplicate();
+    }
+
+    /**
+     * Create a window whose amount of rows is limited only by its capacity.
+     * @see #RowWindow(int, int)
+     */
+    public RowWindow(int capacityBytes) {
+        this(capacityBytes, Integer.MAX_VALUE);
+    }
+
+    /** Load row and column count written by the native code. */
+    void update() {
+        rowCount = buffer.getInt(HEADER_ROW_COUNT);
+        columnCount = buffer.getInt(HEADER_COLUMN_COUNT);
+    }
+
+    void clear() {
+        rowCount = 0;
+    }
+
+    /** @return amount of rows in the window */
+    public int rowCount() {
+        return rowCount;
+    }
+
+    /** @return amount of columns of each row */
+    public int columnCount() {
+        return columnCount;
+    }
+
+    private int cell(int row, int column) {
+        if (row < 0 || row >= rowCount) throw new IndexOutOfBoundsException("row " + row + " of " + rowCount);
+        if (column < 0 || column >= columnCount) throw new IndexOutOfBoundsException("column " + column + " of " + columnCount);
+        return HEADER_SIZE + (row * columnCount + column) * CELL_SIZE;
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case TYPE_INTEGER: return "INTEGER";
+            case TYPE_FLOAT: return "FLOAT";
+            case TYPE_TEXT: return "TEXT";
+            case TYPE_BLOB: return "BLOB";
+            case TYPE_NULL: return "NULL";
+            default: return "type " + type;
+        }
+    }
+
+    /**
+     * @param row starts at 0
+     * @param column starts at 0
+     * @return storage class of the value, one of {@link #TYPE_INTEGER}, {@link #TYPE_FLOAT},
+     * {@link #TYPE_TEXT}, {@link #TYPE_BLOB} or {@link #TYPE_NULL}
+     */
+    public int getType(int row, int column) {
+        return buffer.getInt(cell(row, column) + CELL_TYPE);
+    }
+
+    /** @return true if the value is NULL */
+    public boolean isNull(int row, int column) {
+        return getType(row, column) == TYPE_NULL;
+    }
+
+    /** Get boolean value. True is a non-zero number, otherwise false. */
+    public boolean getBoolean(int row, int column) {
+        return getLong(row, column) != 0L;
+    }
+
+    /** Get LONG value. FLOAT is truncated, NULL is returned as 0. */
+    public long getLong(int row, int column) {
+        final int cell = cell(row, column);
+        final int type = buffer.getInt(cell + CELL_TYPE);
+        switch (type) {
+            case TYPE_INTEGER: return buffer.getLong(cell + CELL_VALUE);
+            case TYPE_FLOAT: return (long) buffer.getDouble(cell + CELL_VALUE);
+            case TYPE_NULL: return 0L;
+            default: throw new SQLiteException("Unable to convert " + typeName(type) + " to long");
+        }
+    }
+
+    /** Get double value. NULL is returned as 0.0. */
+    public double getDouble(int row, int column) {
+        final int cell = cell(row, column);
+        final int type = buffer.getInt(cell + CELL_TYPE);
+        switch (type) {
+            case TYPE_INTEGER: return (double) buffer.getLong(cell + CELL_VALUE);
+            case TYPE_FLOAT: return buffer.getDouble(cell + CELL_VALUE);
+            case TYPE_NULL: return 0.0;
+            default: throw new SQLiteException("Unable to convert " + typeName(type) + " to double");
+        }
+    }
+
+    /** Get TEXT value. NULL is returned as null. */
+    public @Nullable String getString(int row, int column) {
+        final int cell = cell(row, column);
+        final int type = buffer.getInt(cell + CELL_TYPE);
+        if (type == TYPE_NULL) return null;
+        if (type != TYPE_TEXT) throw new SQLiteException("Unable to convert " + typeName(type) + " to string");
+
+        final int length = buffer.getInt(cell + CELL_LENGTH) >> 1;
+        final int offset = (int) buffer.getLong(cell + CELL_VALUE);
+        char[] chars = charScratch;
+        if (chars.length < length) {
+            charScratch = chars = new char[Math.max(length, chars.length * 2)];
+        }
+        charView.position(offset >> 1);
+        charView.get(chars, 0, length);
+        return new String(chars, 0, length);
+    }
+
+    /** Get BLOB value. NULL is returned as null. */
+    public @Nullable byte[] getBlob(int row, int column) {
+        final int cell = cell(row, column);
+        final int type = buffer.getInt(cell + CELL_TYPE);
+        if (type == TYPE_NULL) return null;
+        if (type != TYPE_BLOB) throw new SQLiteException("Unable to convert " + typeName(type) + " to blob");
+
+        final byte[] result = new byte[buffer.getInt(cell + CELL_LENGTH)];
+        byteView.position((int) buffer.getLong(cell + CELL_VALUE));
+        byteView.get(result);
+        return result;
+    }
+}
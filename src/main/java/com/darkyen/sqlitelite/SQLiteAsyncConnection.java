@@ -0,0 +1,308 @@
+package com.darkyen.sqlitelite;
+
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Owns a {@link SQLiteConnection} and runs all operations on it on its own worker thread, in the order of submission.
+ * Queued operations run back to back on the same thread, so the thread does not have to be woken up for each of them.
+ * <p>
+ * Each operation returns a {@link Future} and can also have a {@link Callback}, which is called on the worker thread.
+ * Cancelling a future of an operation which is already running with {@code mayInterruptIfRunning}
+ * {@link SQLiteConnection#interrupt() interrupts} the connection, so that the running statement fails
+ * with {@link SQLiteInterruptedException}. Statements which the operation starts after that are not interrupted.
+ * Because the operation may still complete (and commit), such {@code cancel} returns false and the future is cancelled
+ * only if the operation then fails with {@link SQLiteInterruptedException}, otherwise it reports the real outcome.
+ * <p>
+ * Thread safe.
+ */
+public final class SQLiteAsyncConnection implements AutoCloseable {
+    private static final String TAG = "SQLiteAsyncConnection";
+
+    /** Work to run on the connection, on the worker thread. */
+    public interface Operation<T> {
+        T run(@NotNull SQLiteConnection connection) throws Exception;
+    }
+
+    /** Notified about the result of an operation, on the worker thread. */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /** @param error thrown by the operation, or {@link CancellationException} if the operation was cancelled */
+        void onFailure(@NotNull Throwable error);
+    }
+
+    private final class Job<T> extends SettableFuture<T> {
+        final Operation<T> operation;
+        final @Nullable Callback<? super T> callback;
+
+        Job(Operation<T> operation, @Nullable Callback<? super T> callback) {
+            this.operation = operation;
+            this.callback = callback;
+        }
+
+        @Override
+        boolean interruptRunning() {
+            final SQLiteConnection connection = SQLiteAsyncConnection.this.connection;
+            if (connection == null) return false;
+            connection.interrupt();
+            return true;
+        }
+
+        void run() {
+            if (!start()) {
+                notifyFailure(new CancellationException());
+                return;
+            }
+
+            final T result;
+            try {
+                result = operation.run(connection());
+            } catch (Throwable t) {
+                fail(t);
+                notifyFailure(isCancelled() ? new CancellationException() : t);
+                return;
+            }
+            set(result);
+            if (callback != null) {
+                try {
+                    callback.onSuccess(result);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Callback failed", t);
+                }
+            }
+        }
+
+        private void notifyFailure(Throwable error) {
+            if (callback == null) return;
+            try {
+                callback.onFailure(error);
+            } catch (Throwable t) {
+                Log.e(TAG, "Callback failed", t);
+            }
+        }
+    }
+
+    private final LinkedBlockingQueue<Job<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private boolean closed = false;
+    /** Delegate to open the connection with on the worker thread, null if opened already */
+    private @Nullable SQLiteDelegate delegate;
+    /** Set on the worker thread when opened by delegate */
+    private volatile SQLiteConnection connection;
+    private Throwable openFailure;
+
+    private SQLiteAsyncConnection(@Nullable SQLiteConnection connection, @Nullable SQLiteDelegate delegate) {
+        this.connection = connection;
+        this.delegate = delegate;
+        worker = new Thread(this::workerLoop, TAG);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Take ownership of an open connection. It must not be used directly anymore.
+     */
+    public SQLiteAsyncConnection(@NotNull SQLiteConnection connection) {
+        this(connection, null);
+    }
+
+    /**
+     * Open the connection on the worker thread, without blocking the caller.
+     * If opening fails, all operations fail with {@link SQLiteException} caused by the failure.
+     * @see SQLiteConnection#open(SQLiteDelegate)
+     */
+    public static @NotNull SQLiteAsyncConnection open(@NotNull SQLiteDelegate delegate) {
+        return new SQLiteAsyncConnection(null, delegate);
+    }
+
+    private @NotNull SQLiteConnection connection() {
+        final SQLiteConnection connection = this.connection;
+        if (connection == null) throw new SQLiteException("Connection could not be opened", openFailure);
+        return connection;
+    }
+
+    private void workerLoop() {
+        final SQLiteDelegate delegate = this.delegate;
+        if (delegate != null) {
+            this.delegate = null;
+            try {
+                connection = SQLiteConnection.open(delegate);
+            } catch (Throwable t) {
+                openFailure = t;
+            }
+        }
+
+        while (true) {
+            final Job<?> job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                continue;// Only close() stops the worker
+            }
+            if (job.operation == null) break;// Close job
+            job.run();
+        }
+
+        final SQLiteConnection connection = this.connection;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Throwable t) {
+                Log.e(TAG, "Failed to close connection", t);
+            }
+        }
+    }
+
+    /**
+     * Queue the operation.
+     * @param callback to call on the worker thread when the operation completes, fails or is cancelled
+     * @return future of the result of the operation
+     * @throws IllegalStateException if the connection is closed
+     */
+    public <T> @NotNull Future<T> submit(@NotNull Operation<T> operation, @Nullable Callback<? super T> callback) {
+        final Job<T> job = new Job<>(operation, callback);
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Connection is closed");
+            queue.add(job);
+        }
+        return job;
+    }
+
+    /** @see #submit(Operation, Callback) */
+    public <T> @NotNull Future<T> submit(@NotNull Operation<T> operation) {
+        return submit(operation, null);
+    }
+
+    /** @see SQLiteConnection#command(String) */
+    public @NotNull Future<Void> command(@NotNull @Language("RoomSql") String sql) {
+        return submit(connection -> {
+            connection.command(sql);
+            return null;
+        });
+    }
+
+    /** @see SQLiteConnection#pragma(String) */
+    public @NotNull Future<String> pragma(@NotNull @Language("RoomSql") String sql) {
+        return submit(connection -> connection.pragma(sql));
+    }
+
+    /**
+     * Execute the statement with given arguments.
+     * @param sql of a statement from {@link SQLiteConnection#cachedStatement(String)}
+     * @param args bound in order, may be null, {@link Boolean}, {@link Long}, {@link Integer}, {@link Short}, {@link Byte},
+     *             {@link Double}, {@link Float}, {@link String}, byte[] or {@link ByteBuffer}
+     * @see SQLiteStatement#executeForChangedRowCount()
+     */
+    public @NotNull Future<Long> executeForChangedRowCount(@NotNull @Language("RoomSql") String sql, @NotNull Object... args) {
+        return submit(connection -> {
+            try (SQLiteStatement statement = connection.cachedStatement(sql)) {
+                bindArgs(statement, args);
+                return statement.executeForChangedRowCount();
+            }
+        });
+    }
+
+    /**
+     * @see #executeForChangedRowCount(String, Object...)
+     * @see SQLiteStatement#executeForRowID()
+     */
+    public @NotNull Future<Long> executeForRowID(@NotNull @Language("RoomSql") String sql, @NotNull Object... args) {
+        return submit(connection -> {
+            try (SQLiteStatement statement = connection.cachedStatement(sql)) {
+                bindArgs(statement, args);
+                return statement.executeForRowID();
+            }
+        });
+    }
+
+    /**
+     * @see #executeForChangedRowCount(String, Object...)
+     * @see SQLiteStatement#executeForLong(long)
+     */
+    public @NotNull Future<Long> executeForLong(@NotNull @Language("RoomSql") String sql, long defaultValue, @NotNull Object... args) {
+        return submit(connection -> {
+            try (SQLiteStatement statement = connection.cachedStatement(sql)) {
+                bindArgs(statement, args);
+                return statement.executeForLong(defaultValue);
+            }
+        });
+    }
+
+    /**
+     * @see #executeForChangedRowCount(String, Object...)
+     * @see SQLiteStatement#executeForString()
+     */
+    public @NotNull Future<String> executeForString(@NotNull @Language("RoomSql") String sql, @NotNull Object... args) {
+        return submit(connection -> {
+            try (SQLiteStatement statement = connection.cachedStatement(sql)) {
+                bindArgs(statement, args);
+                return statement.executeForString();
+            }
+        });
+    }
+
+    private static void bindArgs(@NotNull SQLiteStatement statement, @NotNull Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final int index = i + 1;
+            final Object arg = args[i];
+            if (arg == null) {
+                statement.bindNull(index);
+            } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+                statement.bind(index, ((Number) arg).longValue());
+            } else if (arg instanceof Double || arg instanceof Float) {
+                statement.bind(index, ((Number) arg).doubleValue());
+            } else if (arg instanceof Boolean) {
+                statement.bind(index, (boolean) (Boolean) arg);
+            } else if (arg instanceof String) {
+                statement.bind(index, (String) arg);
+            } else if (arg instanceof byte[]) {
+                statement.bind(index, (byte[]) arg);
+            } else if (arg instanceof ByteBuffer) {
+                statement.bind(index, (ByteBuffer) arg);
+            } else {
+                throw new IllegalArgumentException("Can't bind " + arg.getClass().getName() + " at " + index);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting operations and close the connection on the worker thread, after the already queued operations.
+     * Does not block. Repeated calls are no-ops.
+     */
+    public void closeAsync() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.add(new Job<Void>(null, null));
+        }
+    }
+
+    /**
+     * Like {@link #closeAsync()}, but waits until the connection is closed. Don't call from the UI thread.
+     */
+    @Override
+    public void close() {
+        closeAsync();
+        if (Thread.currentThread() == worker) return;// Closed from an operation
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
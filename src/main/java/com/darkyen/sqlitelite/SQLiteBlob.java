@@ -0,0 +1,140 @@
+package com.darkyen.sqlitelite;
+
+import android.database.sqlite.SQLiteException;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Handle for incremental I/O on a single BLOB value, obtained from
+ * {@link SQLiteConnection#openBlob(String, String, String, long, boolean)}.
+ * Allows reading and writing parts of large values without loading them into memory whole.
+ * <p>
+ * The size of the BLOB can't be changed through the handle, to resize it, write a zeroblob(N) through a statement first.
+ * If the row is modified or deleted by anything else than this handle, the handle expires
+ * and further reads and writes throw {@link android.database.sqlite.SQLiteAbortException}.
+ * @see <a href="https://www.sqlite.org/c3ref/blob_open.html">SQLite documentation</a>
+ */
+public final class SQLiteBlob implements AutoCloseable {
+    private final SQLiteConnection connection;
+    int managementIndex = -1;
+    private long blobPtr;
+
+    SQLiteBlob(SQLiteConnection connection, long blobPtr) {
+        this.connection = connection;
+        this.blobPtr = blobPtr;
+    }
+
+    private long blobPtr() {
+        final long ptr = blobPtr;
+        if (ptr == 0) throw new IllegalStateException("Blob already closed");
+        return ptr;
+    }
+
+    /** @return size of the BLOB in bytes */
+    public int size() {
+        return SQLiteNative.nativeBlobBytes(blobPtr());
+    }
+
+    /**
+     * Point this handle to the same column of a different row of the same table.
+     * This is faster than opening a new handle.
+     * @throws SQLiteException if the row does not exist or its value is not a BLOB or TEXT,
+     * the handle can only be closed after that
+     */
+    public void reopen(long rowId) {
+        SQLiteNative.nativeBlobReopen(connection.connectionPtr(), blobPtr(), rowId);
+    }
+
+    private static void checkRange(int blobOffset, int offset, int length, int arrayLength) {
+        if (blobOffset < 0) throw new IndexOutOfBoundsException("blobOffset " + blobOffset);
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + " of " + arrayLength);
+        }
+    }
+
+    /**
+     * Read {@code length} bytes starting at {@code blobOffset} into {@code dst} at {@code offset}.
+     * @throws SQLiteException when reading outside the BLOB or on any other error
+     */
+    public void read(int blobOffset, @NotNull byte[] dst, int offset, int length) {
+        checkRange(blobOffset, offset, length, dst.length);
+        SQLiteNative.nativeBlobReadArray(connection.connectionPtr(), blobPtr(), blobOffset, dst, offset, length);
+    }
+
+    /**
+     * Read the remaining bytes of {@code dst} starting at {@code blobOffset}.
+     * The position of {@code dst} is advanced by the amount of read bytes.
+     * Direct buffers are filled without any intermediate copy.
+     * @throws SQLiteException when reading outside the BLOB or on any other error
+     */
+    public void read(int blobOffset, @NotNull ByteBuffer dst) {
+        if (dst.isReadOnly()) throw new ReadOnlyBufferException();
+        final int position = dst.position();
+        final int length = dst.remaining();
+        if (dst.isDirect()) {
+            checkRange(blobOffset, 0, 0, 0);
+            SQLiteNative.nativeBlobReadBuffer(connection.connectionPtr(), blobPtr(), blobOffset, dst, position, length);
+        } else {
+            read(blobOffset, dst.array(), dst.arrayOffset() + position, length);
+        }
+        dst.position(position + length);
+    }
+
+    /**
+     * Write {@code length} bytes of {@code src} from {@code offset} into the BLOB, starting at {@code blobOffset}.
+     * @throws SQLiteException when writing outside the BLOB, when the handle is not writable or on any other error
+     */
+    public void write(int blobOffset, @NotNull byte[] src, int offset, int length) {
+        checkRange(blobOffset, offset, length, src.length);
+        SQLiteNative.nativeBlobWriteArray(connection.connectionPtr(), blobPtr(), blobOffset, src, offset, length);
+    }
+
+    /**
+     * Write the remaining bytes of {@code src} into the BLOB, starting at {@code blobOffset}.
+     * The position of {@code src} is advanced by the amount of written bytes.
+     * Direct buffers are written without any intermediate copy.
+     * @throws SQLiteException when writing outside the BLOB, when the handle is not writable or on any other error
+     */
+    public void write(int blobOffset, @NotNull ByteBuffer src) {
+        final int position = src.position();
+        final int length = src.remaining();
+        if (src.isDirect()) {
+            checkRange(blobOffset, 0, 0, 0);
+            SQLiteNative.nativeBlobWriteBuffer(connection.connectionPtr(), blobPtr(), blobOffset, src, position, length);
+        } else if (src.hasArray()) {
+            write(blobOffset, src.array(), src.arrayOffset() + position, length);
+        } else {
+            final byte[] copy = new byte[length];
+            src.duplicate().get(copy);
+            write(blobOffset, copy, 0, length);
+        }
+        src.position(position + length);
+    }
+
+    void close(long connectionPtr) throws SQLiteException {
+        final long ptr = blobPtr;
+        if (ptr == 0) return;// Already closed
+        blobPtr = 0;
+        SQLiteNative.nativeBlobClose(connectionPtr, ptr);
+    }
+
+    /**
+     * Close the handle, releasing its resources.
+     * Repeated calls are no-ops.
+     * @throws SQLiteException if a write through this handle failed
+     */
+    @Override
+    public void close() throws SQLiteException {
+        if (blobPtr == 0) return;
+        try {
+            close(connection.connectionPtr());
+        } finally {
+            // It is managed, delete it from management tracking list
+            if (managementIndex >= 0) {
+                connection.removeFromManaged(this);
+            }
+        }
+    }
+}
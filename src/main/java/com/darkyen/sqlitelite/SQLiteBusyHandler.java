@@ -0,0 +1,77 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Strategy for waiting when the database is locked by another connection.
+ * When it gives up, the operation fails with {@link android.database.sqlite.SQLiteDatabaseLockedException}.
+ * The strategies run natively, through sqlite3_busy_handler.
+ * <p>
+ * In ordinary usage, waiting is quite rare. Most databases only ever have a single open connection at a time
+ * unless they are using WAL. When using WAL, waiting happens mostly when another connection writes
+ * or is busy performing an auto-checkpoint operation. The timeout needs to be long enough to tolerate
+ * slow I/O write operations but not so long as to cause the application to hang indefinitely
+ * if there is a problem acquiring a database lock.
+ *
+ * @see SQLiteDelegate#busyHandler
+ * @see SQLiteConnection#setBusyHandler(SQLiteBusyHandler)
+ * @see <a href="https://www.sqlite.org/c3ref/busy_handler.html">SQLite documentation</a>
+ */
+public final class SQLiteBusyHandler {
+
+    /* Must match SQLiteNative.cpp */
+    static final int STRATEGY_FAIL = 0;
+    static final int STRATEGY_SPIN_YIELD = 1;
+    static final int STRATEGY_BACKOFF = 2;
+
+    final int strategy;
+    final int spinCount;
+    final long initialDelayNanos;
+    final long maxDelayNanos;
+    final long timeoutNanos;
+
+    private SQLiteBusyHandler(int strategy, int spinCount, long initialDelayNanos, long maxDelayNanos, long timeoutNanos) {
+        this.strategy = strategy;
+        this.spinCount = spinCount;
+        this.initialDelayNanos = initialDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Exponential backoff from 50 microseconds up to 10 milliseconds between attempts, giving up after 2.5 seconds.
+     * Unlike the default SQLite busy timeout, which starts at 1 millisecond, it adds little latency when the lock is held only briefly.
+     */
+    public static final SQLiteBusyHandler DEFAULT = exponentialBackoff(
+            TimeUnit.MICROSECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(2500), TimeUnit.NANOSECONDS);
+
+    /**
+     * Don't wait at all and fail immediately, for try-lock semantics.
+     */
+    public static final SQLiteBusyHandler FAIL_IMMEDIATELY = new SQLiteBusyHandler(STRATEGY_FAIL, 0, 0, 0, 0);
+
+    /**
+     * Retry immediately in a tight loop for the first {@code spinCount} attempts,
+     * then keep retrying with yielding the thread between attempts, until the timeout.
+     * Gives the lowest latency when locks are held for very short time, at the cost of CPU time.
+     */
+    public static @NotNull SQLiteBusyHandler spinThenYield(int spinCount, long timeout, @NotNull TimeUnit unit) {
+        if (spinCount < 0) throw new IllegalArgumentException("spinCount must not be negative");
+        if (timeout < 0) throw new IllegalArgumentException("timeout must not be negative");
+        return new SQLiteBusyHandler(STRATEGY_SPIN_YIELD, spinCount, 0, 0, unit.toNanos(timeout));
+    }
+
+    /**
+     * Sleep between attempts, starting with {@code initialDelay} and doubling it each attempt, up to {@code maxDelay},
+     * until the timeout.
+     */
+    public static @NotNull SQLiteBusyHandler exponentialBackoff(long initialDelay, long maxDelay, long timeout, @NotNull TimeUnit unit) {
+        if (initialDelay <= 0) throw new IllegalArgumentException("initialDelay must be positive");
+        if (maxDelay < initialDelay) throw new IllegalArgumentException("maxDelay must not be less than initialDelay");
+        if (timeout < 0) throw new IllegalArgumentException("timeout must not be negative");
+        return new SQLiteBusyHandler(STRATEGY_BACKOFF, 0, unit.toNanos(initialDelay), unit.toNanos(maxDelay), unit.toNanos(timeout));
+    }
+}
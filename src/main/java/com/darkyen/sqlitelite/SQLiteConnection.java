@@ -2,6 +2,7 @@ package com.darkyen.sqlitelite;
 
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteException;
 import org.intellij.lang.annotations.Language;
 import org.jetbrains.annotations.NotNull;
@@ -9,6 +10,12 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.darkyen.sqlitelite.SQLiteNative.nativeClose;
@@ -27,8 +34,17 @@ import static com.darkyen.sqlitelite.SQLiteNative.nativeReleaseMemory;
  */
 public class SQLiteConnection implements AutoCloseable {
     private final AtomicLong connectionPtr;
+    /** Native state for callbacks of this connection, freed after the connection is closed */
+    private long statePtr;
 
-    private boolean inTransaction = false;
+    /** Transactions begun by beginTransaction methods and savepoints begun by {@link #savepoint()}
+     * which have not ended yet, innermost last, each FRAME_TRANSACTION or FRAME_SAVEPOINT.
+     * Both are SQLite savepoints of the same name (except for the outermost transaction), so they must be ended in reverse order. */
+    private byte[] frames = new byte[8];
+    private int frameDepth = 0;
+    private static final byte FRAME_TRANSACTION = 0;
+    private static final byte FRAME_SAVEPOINT = 1;
+    /** Whether the innermost transaction is marked as successful */
     private boolean transactionSuccessful = false;
 
     private static final int STATEMENT_BEGIN_DEFERRED_TRANSACTION = 0;
@@ -36,13 +52,40 @@ public class SQLiteConnection implements AutoCloseable {
     private static final int STATEMENT_BEGIN_EXCLUSIVE_TRANSACTION = 2;
     private static final int STATEMENT_COMMIT_TRANSACTION = 3;
     private static final int STATEMENT_ROLLBACK_TRANSACTION = 4;
-    private static final int STATEMENT_COUNT = 5;
+    private static final int STATEMENT_SAVEPOINT = 5;
+    private static final int STATEMENT_RELEASE_SAVEPOINT = 6;
+    private static final int STATEMENT_ROLLBACK_TO_SAVEPOINT = 7;
+    private static final int STATEMENT_COUNT = 8;
     private final SQLiteStatement[] statementCache = new SQLiteStatement[STATEMENT_COUNT];
 
     private final ArrayList<SQLiteStatement> managedStatements = new ArrayList<>();
+    private final ArrayList<SQLiteBlob> managedBlobs = new ArrayList<>();
+
+    /** Idle statements of {@link #cachedStatement(String)}, least recently returned first */
+    private final LinkedHashMap<String, SQLiteStatement> idleCachedStatements = new LinkedHashMap<>();
+    private int statementCacheSize = SQLiteDelegate.DEFAULT_STATEMENT_CACHE_SIZE;
+
+    /** Statements of {@link SharedStatement}s, indexed by {@link SharedStatement#index} */
+    private SQLiteStatement[] sharedStatements = new SQLiteStatement[0];
+
+    /** Must match PROFILE_DRAIN_BATCH in SQLiteNative.cpp */
+    private static final int PROFILE_DRAIN_BATCH = 64;
+    /** Whether statement executions are recorded, see {@link #setProfiling(int)} */
+    private boolean profiling = false;
+    private long[] profileBatch = null;
+    private @Nullable SlowQueryListener slowQueryListener = null;
+    /** Output of {@link #queryPlan(String)} by SQL, least recently used first */
+    private final LinkedHashMap<String, String> queryPlans = new LinkedHashMap<>(16, 0.75f, true);
+    private static final int QUERY_PLAN_CACHE_SIZE = 32;
 
     private SQLiteConnection(long connectionPtr) {
         this.connectionPtr = new AtomicLong(connectionPtr);
+        try {
+            this.statePtr = SQLiteNative.nativeCreateConnectionState();
+        } catch (Throwable t) {
+            nativeClose(connectionPtr);
+            throw t;
+        }
     }
 
     long connectionPtr() {
@@ -66,11 +109,15 @@ public class SQLiteConnection implements AutoCloseable {
      * Begins a transaction in IMMEDIATE mode.
      * Useful for write transactions.
      * <p>
-     * Transactions cannot be nested.
      * The changes will be rolled back if any transaction is ended without being
      * marked as clean (by calling {@link #setTransactionSuccessful()}).
      * Otherwise, they will be committed.
      * <p>
+     * Transactions can be nested. Nested transactions are savepoints of the outer transaction,
+     * whose mode is used for the whole transaction. Ending an unsuccessful nested transaction rolls back
+     * only the changes made in it, ending a successful one keeps the changes
+     * and they are committed together with the outermost transaction.
+     * <p>
      * Here is the standard idiom for transactions:
      *
      * <pre>
@@ -100,14 +147,25 @@ public class SQLiteConnection implements AutoCloseable {
     }
 
     private void beginTransaction(int statement) {
-        if (inTransaction) {
-            throw new IllegalStateException("Can't begin nested transaction");
+        if (frameDepth > 0) {
+            if (transactionSuccessful) {
+                throw new IllegalStateException("Can't begin nested transaction, transaction is already successful");
+            }
+            executeCacheStatement(STATEMENT_SAVEPOINT);
+        } else {
+            executeCacheStatement(statement);
         }
-        executeCacheStatement(statement);
-        inTransaction = true;
+        pushFrame(FRAME_TRANSACTION);
         transactionSuccessful = false;
     }
 
+    private void pushFrame(byte frame) {
+        if (frameDepth == frames.length) {
+            frames = Arrays.copyOf(frames, frameDepth * 2);
+        }
+        frames[frameDepth++] = frame;
+    }
+
     /**
      * Marks the current transaction as successful. Do not do any more database work between
      * calling this and calling endTransaction. Do as little non-database work as possible in that
@@ -118,7 +176,7 @@ public class SQLiteConnection implements AutoCloseable {
      * transaction is already marked as successful.
      */
     public void setTransactionSuccessful() {
-        if (!inTransaction) {
+        if (frameDepth <= 0) {
             throw new IllegalStateException("No transaction to mark successful");
         }
         if (transactionSuccessful) {
@@ -130,20 +188,210 @@ public class SQLiteConnection implements AutoCloseable {
     /**
      * End a transaction. See beginTransaction for notes about how to use this and when transactions
      * are committed and rolled back.
+     *
+     * @throws IllegalStateException if not in a transaction or a savepoint begun in the transaction has not been released
      */
     public void endTransaction() {
-        if (!inTransaction) {
+        if (frameDepth <= 0) {
             throw new IllegalStateException("No transaction in progress to end");
         }
+        if (frames[frameDepth - 1] != FRAME_TRANSACTION) {
+            throw new IllegalStateException("Savepoint must be released before the transaction ends");
+        }
 
-        inTransaction = false;
-        if (transactionSuccessful) {
-            executeCacheStatement(STATEMENT_COMMIT_TRANSACTION);
+        final boolean successful = transactionSuccessful;
+        // The outer transaction could not have been marked successful before this one began
+        transactionSuccessful = false;
+        if (--frameDepth > 0) {
+            if (!successful) {
+                executeCacheStatement(STATEMENT_ROLLBACK_TO_SAVEPOINT);
+            }
+            executeCacheStatement(STATEMENT_RELEASE_SAVEPOINT);
+            return;
+        }
+
+        if (successful) {
+            try {
+                executeCacheStatement(STATEMENT_COMMIT_TRANSACTION);
+            } catch (Throwable t) {
+                // Failed COMMIT may leave the transaction open, end it so that the connection stays usable
+                try {
+                    executeCacheStatement(STATEMENT_ROLLBACK_TRANSACTION);
+                } catch (Throwable rollbackT) {
+                    t.addSuppressed(rollbackT);// Probably already rolled back by SQLite
+                }
+                throw t;
+            }
         } else {
             executeCacheStatement(STATEMENT_ROLLBACK_TRANSACTION);
         }
     }
 
+    /** Mode of a transaction started by {@link #runInTransaction(TransactionMode, TransactionBody)}. */
+    public enum TransactionMode {
+        /** @see #beginTransactionDeferred() */
+        DEFERRED,
+        /** @see #beginTransactionImmediate() */
+        IMMEDIATE,
+        /** @see #beginTransactionExclusive() */
+        EXCLUSIVE
+    }
+
+    /** Body of a transaction run by {@link #runInTransaction(TransactionMode, TransactionBody)}. */
+    public interface TransactionBody<T> {
+        /**
+         * Do the work of the transaction. May be called multiple times, if the transaction is retried.
+         * Throw to roll back the transaction.
+         */
+        T run(@NotNull SQLiteConnection connection);
+    }
+
+    private static final int DEFAULT_TRANSACTION_ATTEMPTS = 5;
+    private static final long TRANSACTION_RETRY_INITIAL_DELAY_MICROS = 1000;
+    private static final long TRANSACTION_RETRY_MAX_DELAY_MICROS = 100_000;
+
+    /**
+     * Run the body in a transaction, which is committed when the body returns and rolled back when it throws.
+     * If the database is locked ({@link SQLiteDatabaseLockedException}), the whole transaction is retried
+     * after a random delay, up to 5 attempts in total.
+     * This includes the case when a deferred transaction can't upgrade to a write transaction,
+     * because another connection has written since it started reading (SQLITE_BUSY_SNAPSHOT).
+     * <p>
+     * When already in a transaction, the body runs in a nested transaction and is not retried,
+     * the error propagates to the outermost transaction instead.
+     *
+     * @param mode of the transaction, irrelevant for nested transactions
+     * @return the result of the body
+     * @throws SQLiteDatabaseLockedException if the last attempt fails because the database is locked
+     * @throws SQLiteInterruptedException if the thread is interrupted while waiting to retry
+     * @see #runInTransaction(TransactionMode, int, TransactionBody)
+     */
+    public <T> T runInTransaction(@NotNull TransactionMode mode, @NotNull TransactionBody<T> body) {
+        return runInTransaction(mode, DEFAULT_TRANSACTION_ATTEMPTS, body);
+    }
+
+    /**
+     * Like {@link #runInTransaction(TransactionMode, TransactionBody)}, with custom amount of attempts.
+     * Delays between attempts are random, up to 1 ms after the first attempt, doubling each attempt up to 100 ms.
+     * Waiting for the lock within one attempt is handled by the {@link #setBusyHandler(SQLiteBusyHandler) busy handler}.
+     * @param maxAttempts how many times to try the transaction, 1 for no retry
+     */
+    public <T> T runInTransaction(@NotNull TransactionMode mode, int maxAttempts, @NotNull TransactionBody<T> body) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+        if (frameDepth > 0) {
+            return runInTransactionOnce(mode, body);
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return runInTransactionOnce(mode, body);
+            } catch (SQLiteDatabaseLockedException e) {
+                if (attempt >= maxAttempts) throw e;
+
+                final long maxDelayMicros = Math.min(TRANSACTION_RETRY_INITIAL_DELAY_MICROS << Math.min(attempt - 1, 20), TRANSACTION_RETRY_MAX_DELAY_MICROS);
+                try {
+                    TimeUnit.MICROSECONDS.sleep(1 + ThreadLocalRandom.current().nextLong(maxDelayMicros));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    final SQLiteInterruptedException interrupted = new SQLiteInterruptedException("Interrupted while waiting to retry transaction", ie);
+                    interrupted.addSuppressed(e);
+                    throw interrupted;
+                }
+            }
+        }
+    }
+
+    private <T> T runInTransactionOnce(@NotNull TransactionMode mode, @NotNull TransactionBody<T> body) {
+        switch (mode) {
+            case DEFERRED:
+                beginTransaction(STATEMENT_BEGIN_DEFERRED_TRANSACTION);
+                break;
+            case IMMEDIATE:
+                beginTransaction(STATEMENT_BEGIN_IMMEDIATE_TRANSACTION);
+                break;
+            case EXCLUSIVE:
+                beginTransaction(STATEMENT_BEGIN_EXCLUSIVE_TRANSACTION);
+                break;
+            default: throw new AssertionError("mode " + mode);
+        }
+
+        final T result;
+        try {
+            result = body.run(this);
+            setTransactionSuccessful();
+        } catch (Throwable t) {
+            try {
+                endTransaction();
+            } catch (Throwable endT) {
+                t.addSuppressed(endT);
+            }
+            throw t;
+        }
+        endTransaction();
+        return result;
+    }
+
+    /**
+     * Begin a savepoint, which marks a point in the current transaction to which it is possible to roll back.
+     * Must be called in a transaction and ended by {@link #releaseSavepoint()}.
+     * Savepoints can be nested, each operation applies to the innermost savepoint.
+     * Nested transactions are also savepoints, savepoints and transactions must be properly nested:
+     * a nested transaction begun after the savepoint must end before it is released and vice versa.
+     *
+     * @throws IllegalStateException if not in a transaction
+     * @see <a href="https://www.sqlite.org/lang_savepoint.html">SQLite documentation</a>
+     */
+    public void savepoint() {
+        if (frameDepth <= 0) {
+            throw new IllegalStateException("Savepoints can be used only in a transaction");
+        }
+        executeCacheStatement(STATEMENT_SAVEPOINT);
+        pushFrame(FRAME_SAVEPOINT);
+    }
+
+    /**
+     * End the innermost savepoint. Its changes become part of the enclosing savepoint or transaction.
+     * @throws IllegalStateException if there is no savepoint or a nested transaction begun after it has not ended
+     */
+    public void releaseSavepoint() {
+        checkInnermostSavepoint("No savepoint to release");
+        executeCacheStatement(STATEMENT_RELEASE_SAVEPOINT);
+        frameDepth--;
+    }
+
+    /**
+     * Roll back all changes made since the innermost savepoint began.
+     * The savepoint stays active and must still be released by {@link #releaseSavepoint()}.
+     * @throws IllegalStateException if there is no savepoint or a nested transaction begun after it has not ended
+     */
+    public void rollbackToSavepoint() {
+        checkInnermostSavepoint("No savepoint to roll back to");
+        executeCacheStatement(STATEMENT_ROLLBACK_TO_SAVEPOINT);
+    }
+
+    private void checkInnermostSavepoint(@NotNull String noSavepointMessage) {
+        if (frameDepth <= 0) {
+            throw new IllegalStateException(noSavepointMessage);
+        }
+        if (frames[frameDepth - 1] != FRAME_SAVEPOINT) {
+            throw new IllegalStateException(noSavepointMessage + ", the innermost is a transaction, which must be ended first");
+        }
+    }
+
+    /** @return true if a transaction begun by one of the beginTransaction methods has not ended yet */
+    boolean inTransaction() {
+        return frameDepth > 0;
+    }
+
+    /** Roll back the current transaction, if any, including all nested transactions,
+     * regardless of whether it was marked as successful. */
+    void abortTransaction() {
+        if (frameDepth <= 0) return;
+        frameDepth = 0;
+        transactionSuccessful = false;
+        executeCacheStatement(STATEMENT_ROLLBACK_TRANSACTION);
+    }
+
     private void executeCacheStatement(int statementIndex) {
         SQLiteStatement stmt = statementCache[statementIndex];
         if (stmt == null) {
@@ -164,10 +412,19 @@ public class SQLiteConnection implements AutoCloseable {
                 case STATEMENT_ROLLBACK_TRANSACTION:
                     sql = "ROLLBACK TRANSACTION";
                     break;
+                case STATEMENT_SAVEPOINT:
+                    sql = "SAVEPOINT sqlitelite";
+                    break;
+                case STATEMENT_RELEASE_SAVEPOINT:
+                    sql = "RELEASE sqlitelite";
+                    break;
+                case STATEMENT_ROLLBACK_TO_SAVEPOINT:
+                    sql = "ROLLBACK TO sqlitelite";
+                    break;
                 default: throw new AssertionError("statement "+statementIndex);
             }
             //noinspection resource
-            statementCache[statementIndex] = stmt = unmanagedStatement(sql);
+            statementCache[statementIndex] = stmt = unmanagedStatement(sql, SQLITE_PREPARE_PERSISTENT);
         }
         stmt.executeForNothing();
     }
@@ -178,15 +435,19 @@ public class SQLiteConnection implements AutoCloseable {
     private @NotNull SQLiteStatement unmanagedStatement(
             @NotNull
             @Language("RoomSql"/*Should be just SQL, but that is not supported on community :( */)
-            String sql) {
+            String sql, int prepFlags) {
         long statementPtr;
         try {
-            statementPtr = nativePrepareStatement(connectionPtr(), sql);
+            statementPtr = nativePrepareStatement(connectionPtr(), sql, prepFlags);
         } catch (Exception e) {
             e.addSuppressed(new SQLiteException("While preparing: '"+sql+"'"));
             throw e;
         }
-        return new SQLiteStatement(this, statementPtr);
+        final SQLiteStatement statement = new SQLiteStatement(this, statementPtr);
+        if (profiling) {
+            statement.profileSince = SQLiteNative.nativeProfileWritten(statePtr);
+        }
+        return statement;
     }
 
     /**
@@ -200,12 +461,115 @@ public class SQLiteConnection implements AutoCloseable {
             @NotNull
             @Language("RoomSql"/*Should be just SQL, but that is not supported on community :( */)
             String sql) {
-        final SQLiteStatement statement = unmanagedStatement(sql);
+        return statement(sql, 0);
+    }
+
+    /**
+     * Create a new statement with preparation flags.
+     * Use {@link #SQLITE_PREPARE_PERSISTENT} for statements that will be kept around for a long time,
+     * so that SQLite does not use its lookaside memory for them, which is better left to short-lived statements.
+     *
+     * @param sql one SQL command, without trailing semicolon
+     * @param prepFlags combination of SQLITE_PREPARE_* flags, such as {@link #SQLITE_PREPARE_PERSISTENT} and {@link #SQLITE_PREPARE_NO_VTAB}
+     * @see #statement(String)
+     * @see <a href="https://www.sqlite.org/c3ref/c_prepare_normalize.html">SQLite documentation</a>
+     */
+    public @NotNull SQLiteStatement statement(
+            @NotNull
+            @Language("RoomSql"/*Should be just SQL, but that is not supported on community :( */)
+            String sql, int prepFlags) {
+        final SQLiteStatement statement = unmanagedStatement(sql, prepFlags);
         statement.managementIndex = managedStatements.size();
         managedStatements.add(statement);
         return statement;
     }
 
+    /**
+     * Get a prepared statement from the statement cache, or prepare a new one if the cache does not have it.
+     * Closing the statement returns it to the cache (with reset cursor and cleared bindings),
+     * where it stays until it is evicted by other statements, when the cache size is exceeded.
+     * The statement must not be used after it is closed.
+     * <p>
+     * If the same SQL is requested again before the statement is returned, a new statement is prepared.
+     * Statements that are not returned are closed with the database, like statements from {@link #statement(String)}.
+     *
+     * @param sql one SQL command, without trailing semicolon
+     * @see #setStatementCacheSize(int)
+     */
+    public @NotNull SQLiteStatement cachedStatement(
+            @NotNull
+            @Language("RoomSql"/*Should be just SQL, but that is not supported on community :( */)
+            String sql) {
+        SQLiteStatement statement = idleCachedStatements.remove(sql);
+        if (statement == null) {
+            statement = statement(sql, SQLITE_PREPARE_PERSISTENT);
+            statement.cacheKey = sql;
+        }
+        return statement;
+    }
+
+    /**
+     * Set the maximum amount of idle statements kept by {@link #cachedStatement(String)}.
+     * Statements over the limit are closed, least recently used first.
+     * Default is {@link SQLiteDelegate#statementCacheSize}.
+     * @param size 0 to disable caching
+     */
+    public void setStatementCacheSize(int size) {
+        if (size < 0) throw new IllegalArgumentException("size must not be negative");
+        statementCacheSize = size;
+        trimStatementCache();
+    }
+
+    /** Called when a cached statement is closed.
+     * @return true if it was returned to the cache, false if it should be closed */
+    boolean returnToCache(@NotNull SQLiteStatement statement) {
+        if (connectionPtr.get() == 0 || statementCacheSize <= 0) return false;
+        final String sql = statement.cacheKey;
+        try {
+            statement.resetForCache();
+        } catch (RuntimeException e) {
+            return false;// Close it instead
+        }
+        final SQLiteStatement previous = idleCachedStatements.put(sql, statement);
+        if (previous != null && previous != statement) {
+            // Two statements with the same SQL were in use, keep only the one that was returned last
+            closeCachedStatement(previous);
+        }
+        trimStatementCache();
+        return true;
+    }
+
+    private void trimStatementCache() {
+        final Iterator<SQLiteStatement> iterator = idleCachedStatements.values().iterator();
+        int excess = idleCachedStatements.size() - statementCacheSize;
+        while (excess-- > 0 && iterator.hasNext()) {
+            final SQLiteStatement statement = iterator.next();
+            iterator.remove();
+            closeCachedStatement(statement);
+        }
+    }
+
+    private static void closeCachedStatement(@NotNull SQLiteStatement statement) {
+        statement.cacheKey = null;
+        statement.close();
+    }
+
+    /** @see SharedStatement#on(SQLiteConnection) */
+    @NotNull SQLiteStatement sharedStatement(@NotNull SharedStatement shared) {
+        final int index = shared.index;
+        SQLiteStatement[] statements = sharedStatements;
+        if (index >= statements.length) {
+            sharedStatements = statements = Arrays.copyOf(statements, Math.max(index + 1, statements.length * 2));
+        }
+        SQLiteStatement statement = statements[index];
+        if (statement == null || statement.isClosed()) {
+            statements[index] = statement = statement(shared.sql, shared.prepFlags);
+        } else {
+            statement.resetCursor();
+        }
+        return statement;
+    }
+
     void removeFromManaged(@NotNull SQLiteStatement statement) {
         final int managementIndex = statement.managementIndex;
         statement.managementIndex = -1;
@@ -224,13 +588,57 @@ public class SQLiteConnection implements AutoCloseable {
         if (removedStatement != statement) throw new AssertionError("Statement mismanagement");
     }
 
+    /**
+     * Open a handle for incremental I/O of a BLOB value.
+     * The handle can be closed either manually, or will be closed together with the database.
+     *
+     * @param database symbolic name of the database, "main" for the main database
+     * @param table name of the table
+     * @param column name of the column
+     * @param rowId ROWID of the row
+     * @param writable whether the handle will be used for writing
+     * @throws SQLiteException if the row does not exist, the value is not a BLOB or TEXT, or on any other error
+     * @see SQLiteBlob
+     */
+    public @NotNull SQLiteBlob openBlob(@NotNull String database, @NotNull String table, @NotNull String column, long rowId, boolean writable) {
+        final long blobPtr = SQLiteNative.nativeBlobOpen(connectionPtr(), database, table, column, rowId, writable);
+        final SQLiteBlob blob = new SQLiteBlob(this, blobPtr);
+        blob.managementIndex = managedBlobs.size();
+        managedBlobs.add(blob);
+        return blob;
+    }
+
+    /**
+     * Open a handle for incremental I/O of a BLOB value in the main database.
+     * @see #openBlob(String, String, String, long, boolean)
+     */
+    public @NotNull SQLiteBlob openBlob(@NotNull String table, @NotNull String column, long rowId, boolean writable) {
+        return openBlob("main", table, column, rowId, writable);
+    }
+
+    void removeFromManaged(@NotNull SQLiteBlob blob) {
+        final int managementIndex = blob.managementIndex;
+        blob.managementIndex = -1;
+
+        final int lastIndex = managedBlobs.size() - 1;
+        final SQLiteBlob removedBlob;
+        if (managementIndex == lastIndex) {
+            removedBlob = managedBlobs.remove(managementIndex);
+        } else {
+            final SQLiteBlob movedBlob = managedBlobs.remove(lastIndex);
+            movedBlob.managementIndex = managementIndex;
+            removedBlob = managedBlobs.set(managementIndex, movedBlob);
+        }
+        if (removedBlob != blob) throw new AssertionError("Blob mismanagement");
+    }
+
     /**
      * Perform a DDL command (CREATE, DROP, ALTER, etc.) that returns no rows.
      */
     public void command(@NotNull
                         @Language("RoomSql"/*Should be just SQL, but that is not supported on community :( */)
                         String sql) {
-        try (SQLiteStatement statement = unmanagedStatement(sql)) {
+        try (SQLiteStatement statement = unmanagedStatement(sql, 0)) {
             statement.executeForNothing();
         }
     }
@@ -247,6 +655,234 @@ public class SQLiteConnection implements AutoCloseable {
         }
     }
 
+    /**
+     * Set the strategy for waiting when the database is locked by another connection.
+     * Replaces the handler set by {@link SQLiteDelegate#busyHandler}, {@link SQLiteBusyHandler#DEFAULT} when opened without delegate.
+     * Note that {@code PRAGMA busy_timeout} replaces this handler with the built-in SQLite one, which is not counted by the statistics.
+     */
+    public void setBusyHandler(@NotNull SQLiteBusyHandler handler) {
+        SQLiteNative.nativeSetBusyHandler(connectionPtr(), statePtr, handler.strategy, handler.spinCount,
+                handler.initialDelayNanos, handler.maxDelayNanos, handler.timeoutNanos);
+    }
+
+    /**
+     * @return how many times the busy handler was invoked because the database was locked, since the connection was opened.
+     * Thread safe.
+     * @see #setBusyHandler(SQLiteBusyHandler)
+     */
+    public long busyInvocations() {
+        connectionPtr();// Check that it is open
+        return SQLiteNative.nativeBusyInvocations(statePtr);
+    }
+
+    /**
+     * @return total time in nanoseconds spent by the busy handler waiting for the database to be unlocked,
+     * since the connection was opened. Thread safe.
+     * @see #setBusyHandler(SQLiteBusyHandler)
+     */
+    public long busyWaitNanos() {
+        connectionPtr();// Check that it is open
+        return SQLiteNative.nativeBusyWaitNanos(statePtr);
+    }
+
+    /**
+     * Get runtime status of this connection, such as page cache hits and misses and memory usage.
+     * @param reset whether to reset the counters and high-water marks after reading them
+     * @see SQLiteConnectionStatus
+     */
+    public @NotNull SQLiteConnectionStatus status(boolean reset) {
+        final long[] values = new long[SQLiteConnectionStatus.VALUE_COUNT];
+        SQLiteNative.nativeDbStatus(connectionPtr(), reset, values);
+        return new SQLiteConnectionStatus(values);
+    }
+
+    /**
+     * Get runtime status of this connection, without resetting it.
+     * @see #status(boolean)
+     */
+    public @NotNull SQLiteConnectionStatus status() {
+        return status(false);
+    }
+
+    /** Receives statement executions recorded by profiling, see {@link #drainProfile(ProfileSink)}. */
+    public interface ProfileSink {
+        /**
+         * @param statement which was executed, null if it was closed since
+         *                  or if it is internal (for example the statement of {@link #pragma(String)} or {@link #command(String)})
+         * @param nanos how long the execution took, as measured by SQLite (with millisecond resolution on Android)
+         */
+        void onStatementProfiled(@Nullable SQLiteStatement statement, long nanos);
+    }
+
+    /**
+     * Start or stop recording how long statement executions take.
+     * Executions are recorded natively into a ring buffer, without calling into Java,
+     * so profiling is cheap enough to stay enabled in production.
+     * The buffer should be drained by {@link #drainProfile(ProfileSink)} periodically,
+     * when it is full, the oldest executions are overwritten.
+     * @param bufferCapacity maximum amount of recorded executions, 0 to stop profiling and discard recorded executions
+     */
+    public void setProfiling(int bufferCapacity) {
+        if (bufferCapacity < 0) throw new IllegalArgumentException("bufferCapacity must not be negative");
+        profiling = false;
+        SQLiteNative.nativeSetProfiling(connectionPtr(), statePtr, bufferCapacity);
+        profiling = bufferCapacity > 0;
+    }
+
+    /**
+     * Pass statement executions recorded since the last drain to the sink, oldest first, and forget them.
+     * Does nothing when profiling is not enabled. Reports pending slow queries first, like {@link #reportSlowQueries()}.
+     * @return amount of executions which were overwritten before they could be drained
+     * @see #setProfiling(int)
+     */
+    public long drainProfile(@NotNull ProfileSink sink) {
+        reportSlowQueries();
+        if (!profiling) return 0;
+        long[] batch = profileBatch;
+        if (batch == null) {
+            profileBatch = batch = new long[2 + PROFILE_DRAIN_BATCH * 2];
+        }
+
+        HashMap<Long, SQLiteStatement> statements = null;
+        long overwritten = 0;
+        int count;
+        do {
+            count = SQLiteNative.nativeDrainProfile(statePtr, batch);
+            final long firstSequence = batch[0];
+            overwritten += batch[1];
+            if (count > 0 && statements == null) {
+                statements = statementsByPtr();
+            }
+            for (int i = 0; i < count; i++) {
+                SQLiteStatement statement = statements.get(batch[2 + i * 2]);
+                if (statement != null && statement.profileSince > firstSequence + i) {
+                    // Executed by a closed statement, whose pointer was later reused
+                    statement = null;
+                }
+                sink.onStatementProfiled(statement, batch[3 + i * 2]);
+            }
+        } while (count == PROFILE_DRAIN_BATCH);
+        return overwritten;
+    }
+
+    /** Notified about slow statement executions, see {@link #setSlowQueryListener(long, SlowQueryListener)}. */
+    public interface SlowQueryListener {
+        void onSlowQuery(@NotNull SQLiteSlowQuery query);
+    }
+
+    /**
+     * Capture statement executions which take at least {@code thresholdNanos}.
+     * The SQL, expanded SQL and counters of the statement are captured natively, when the execution finishes.
+     * They are passed to the listener, together with the query plan of the statement,
+     * on the next {@link #reportSlowQueries()} or {@link #drainProfile(ProfileSink)}, which should be called periodically.
+     * When too many slow queries are waiting to be reported, further ones are not captured.
+     * @param thresholdNanos minimum duration of a slow execution, SQLite measures it with millisecond resolution on Android
+     * @param listener null to stop capturing and discard queries which were not reported yet
+     */
+    public void setSlowQueryListener(long thresholdNanos, @Nullable SlowQueryListener listener) {
+        if (listener != null && thresholdNanos <= 0) throw new IllegalArgumentException("thresholdNanos must be positive");
+        slowQueryListener = null;
+        SQLiteNative.nativeSetSlowQueryThreshold(connectionPtr(), statePtr, listener != null ? thresholdNanos : 0);
+        slowQueryListener = listener;
+    }
+
+    /**
+     * Pass slow queries captured since the last report to the listener, oldest first.
+     * Query plans are generated here, at most once for each distinct SQL.
+     * @see #setSlowQueryListener(long, SlowQueryListener)
+     */
+    public void reportSlowQueries() {
+        connectionPtr();// Check that it is open
+        final SlowQueryListener listener = slowQueryListener;
+        if (listener == null) return;
+
+        final long[] values = new long[1 + SQLiteStatementStats.COUNTER_COUNT];
+        final String[] sql = new String[2];
+        while (SQLiteNative.nativePopSlowQuery(statePtr, values, sql)) {
+            final SQLiteStatementStats stats = new SQLiteStatementStats(Arrays.copyOfRange(values, 1, values.length));
+            listener.onSlowQuery(new SQLiteSlowQuery(sql[0], sql[1], values[0], stats, queryPlan(sql[0])));
+            sql[1] = null;
+        }
+    }
+
+    /** @return EXPLAIN QUERY PLAN of the SQL, one line per step, null if it can't be explained */
+    private @Nullable String queryPlan(@NotNull String sql) {
+        if (queryPlans.containsKey(sql)) {
+            return queryPlans.get(sql);
+        }
+
+        String plan;
+        try (SQLiteStatement explain = unmanagedStatement("EXPLAIN QUERY PLAN " + sql, 0)) {
+            // Columns are: id, parent, notused, detail
+            final HashMap<Long, Integer> depths = new HashMap<>();
+            final StringBuilder sb = new StringBuilder();
+            while (explain.cursorNextRow()) {
+                final Integer parentDepth = depths.get(explain.cursorGetLong(1));
+                final int depth = parentDepth == null ? 0 : parentDepth + 1;
+                depths.put(explain.cursorGetLong(0), depth);
+                if (sb.length() > 0) sb.append('\n');
+                for (int i = 0; i < depth; i++) {
+                    sb.append("  ");
+                }
+                sb.append(explain.cursorGetString(3));
+            }
+            plan = sb.toString();
+        } catch (SQLiteException e) {
+            plan = null;
+        }
+
+        queryPlans.put(sql, plan);
+        if (queryPlans.size() > QUERY_PLAN_CACHE_SIZE) {
+            final Iterator<String> iterator = queryPlans.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return plan;
+    }
+
+    private @NotNull HashMap<Long, SQLiteStatement> statementsByPtr() {
+        final HashMap<Long, SQLiteStatement> statements = new HashMap<>();
+        for (SQLiteStatement statement : managedStatements) {
+            statements.put(statement.rawStatementPtr(), statement);
+        }
+        for (SQLiteStatement statement : statementCache) {
+            if (statement != null) {
+                statements.put(statement.rawStatementPtr(), statement);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Limit how long a single statement execution can run.
+     * The limit is enforced natively, by a progress handler which checks the monotonic clock every 1000 virtual machine operations,
+     * so no other thread or timer is needed. A statement which runs out of the budget fails with {@link SQLiteInterruptedException}.
+     * <p>
+     * The budget is measured from the first step of the statement, so with cursors, the time between steps counts too,
+     * and a cursor which is still open when another statement starts is measured from the start of that statement.
+     * @param budgetNanos maximum duration of an execution, 0 for no limit
+     */
+    public void setQueryBudget(long budgetNanos) {
+        if (budgetNanos < 0) throw new IllegalArgumentException("budgetNanos must not be negative");
+        SQLiteNative.nativeSetQueryBudget(connectionPtr(), statePtr, budgetNanos);
+    }
+
+    /**
+     * Make all statements fail with {@link SQLiteInterruptedException} once the deadline passes, until it is cleared.
+     * Enforced natively like {@link #setQueryBudget(long)}.
+     * This includes COMMIT, so clear the deadline before ending a transaction which should be committed.
+     * @param deadlineNanos on the {@link System#nanoTime()} clock
+     * @see #clearDeadline()
+     */
+    public void setDeadline(long deadlineNanos) {
+        SQLiteNative.nativeSetDeadline(connectionPtr(), statePtr, true, deadlineNanos);
+    }
+
+    /** @see #setDeadline(long) */
+    public void clearDeadline() {
+        SQLiteNative.nativeSetDeadline(connectionPtr(), statePtr, false, 0);
+    }
+
     /**
      * If there is a command/query running, interrupt it, which will cause it to throw
      * {@link SQLiteInterruptedException}. Thread safe.
@@ -265,7 +901,7 @@ public class SQLiteConnection implements AutoCloseable {
      * Calling this again after a successful close is a no-op.
      *
      * @throws SQLException on any error (typically happens when not all statements
-     *  are closed yet, but this closes the statements automatically,
+     *  are closed yet, but this closes the statements and blobs automatically,
      *  so it should not happen at all)
      */
     @Override
@@ -277,6 +913,20 @@ public class SQLiteConnection implements AutoCloseable {
         boolean returnConnection = true;
         try {
             Throwable result = null;
+            for (final SQLiteBlob blob : managedBlobs) {
+                blob.managementIndex = -1;// Don't bother removing yourself from the list
+                try {
+                    blob.close(connectionPtr);
+                } catch (Throwable e) {
+                    if (result == null) {
+                        result = e;
+                    } else {
+                        result.addSuppressed(e);
+                    }
+                }
+            }
+            managedBlobs.clear();
+
             for (int i = 0; i < statementCache.length; i++) {
                 final SQLiteStatement statement = statementCache[i];
                 if (statement != null) {
@@ -306,6 +956,8 @@ public class SQLiteConnection implements AutoCloseable {
                 }
             }
             managedStatements.clear();
+            idleCachedStatements.clear();
+            Arrays.fill(sharedStatements, null);
 
             try {
                 nativeClose(connectionPtr);
@@ -316,6 +968,10 @@ public class SQLiteConnection implements AutoCloseable {
                 throw t;
             }
             returnConnection = false;
+
+            // No callback can run anymore
+            SQLiteNative.nativeFreeConnectionState(statePtr);
+            statePtr = 0;
         } finally {
             if (returnConnection) {
                 // Closing has failed, the database is not closed, return the pointer back so that it can be attempted again later
@@ -333,7 +989,18 @@ public class SQLiteConnection implements AutoCloseable {
      */
     public static @NotNull SQLiteConnection open(@NotNull String path, int openFlags) throws SQLiteException {
         long connectionPtr = nativeOpen(path, openFlags);
-        return new SQLiteConnection(connectionPtr);
+        final SQLiteConnection connection = new SQLiteConnection(connectionPtr);
+        try {
+            connection.setBusyHandler(SQLiteBusyHandler.DEFAULT);
+        } catch (Throwable t) {
+            try {
+                connection.close();
+            } catch (Throwable closeT) {
+                t.addSuppressed(closeT);
+            }
+            throw t;
+        }
+        return connection;
     }
 
     /**
@@ -343,18 +1010,26 @@ public class SQLiteConnection implements AutoCloseable {
      * @throws SQLiteException on any error
      */
     public static @NotNull SQLiteConnection open(SQLiteDelegate delegate) throws SQLiteException {
+        return open(delegate, delegate.openFlags);
+    }
+
+    /** Like {@link #open(SQLiteDelegate)}, but with different open flags. */
+    static @NotNull SQLiteConnection open(SQLiteDelegate delegate, int openFlags) throws SQLiteException {
         final File file = delegate.file;
         long connectionPtr = nativeOpen(
                 file == null ? ":memory:" : file.getAbsolutePath(),
-                delegate.openFlags);
+                openFlags);
         final SQLiteConnection connection = new SQLiteConnection(connectionPtr);
+        connection.statementCacheSize = delegate.statementCacheSize;
 
         // Initialize the database, possibly failing in the process
         try {
+            connection.setBusyHandler(delegate.busyHandler);
+
             final int currentVersion = Integer.parseInt(nativeExecutePragma(connectionPtr, "PRAGMA user_version"));
             final int targetVersion = delegate.version;
 
-            boolean readOnly = (delegate.openFlags & SQLiteDatabase.OPEN_READONLY) != 0;
+            boolean readOnly = (openFlags & SQLiteDatabase.OPEN_READONLY) != 0;
             if (!readOnly) {
                 delegate.onConfigure(connection);
 
@@ -412,4 +1087,33 @@ public class SQLiteConnection implements AutoCloseable {
     public static final int SQLITE_OPEN_NOMUTEX        = 0x00008000;
     public static final int SQLITE_OPEN_FULLMUTEX      = 0x00010000;
     public static final int SQLITE_OPEN_NOFOLLOW       = 0x01000000;
+
+    /* Flags for statement(String, int) */
+    public static final int SQLITE_PREPARE_PERSISTENT  = 0x01;
+    public static final int SQLITE_PREPARE_NO_VTAB     = 0x04;
+
+    /* Result codes, returned by the try* methods of SQLiteStatement */
+    public static final int SQLITE_OK                  = 0;
+    public static final int SQLITE_ERROR               = 1;
+    public static final int SQLITE_ABORT               = 4;
+    public static final int SQLITE_BUSY                = 5;
+    public static final int SQLITE_LOCKED              = 6;
+    public static final int SQLITE_READONLY            = 8;
+    public static final int SQLITE_INTERRUPT           = 9;
+    public static final int SQLITE_IOERR               = 10;
+    public static final int SQLITE_CORRUPT             = 11;
+    public static final int SQLITE_FULL                = 13;
+    public static final int SQLITE_CONSTRAINT          = 19;
+    public static final int SQLITE_MISMATCH            = 20;
+    public static final int SQLITE_MISUSE              = 21;
+    public static final int SQLITE_RANGE               = 25;
+    public static final int SQLITE_ROW                 = 100;
+    public static final int SQLITE_DONE                = 101;
+    /* Extended result codes of constraint violations */
+    public static final int SQLITE_CONSTRAINT_CHECK      = SQLITE_CONSTRAINT | (1 << 8);
+    public static final int SQLITE_CONSTRAINT_FOREIGNKEY = SQLITE_CONSTRAINT | (3 << 8);
+    public static final int SQLITE_CONSTRAINT_NOTNULL    = SQLITE_CONSTRAINT | (5 << 8);
+    public static final int SQLITE_CONSTRAINT_PRIMARYKEY = SQLITE_CONSTRAINT | (6 << 8);
+    public static final int SQLITE_CONSTRAINT_UNIQUE     = SQLITE_CONSTRAINT | (8 << 8);
+    public static final int SQLITE_CONSTRAINT_ROWID      = SQLITE_CONSTRAINT | (10 << 8);
 }
@@ -0,0 +1,272 @@
+package com.darkyen.sqlitelite;
+
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.database.sqlite.SQLiteException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.darkyen.sqlitelite.SQLiteConnection.SQLITE_OPEN_CREATE;
+import static com.darkyen.sqlitelite.SQLiteConnection.SQLITE_OPEN_READONLY;
+import static com.darkyen.sqlitelite.SQLiteConnection.SQLITE_OPEN_READWRITE;
+
+/**
+ * A pool of connections to a single database file in WAL mode:
+ * one writer connection and a fixed amount of read-only reader connections.
+ * In WAL mode, readers don't block the writer nor each other, so reads can run in parallel.
+ * <p>
+ * Connections are leased by one thread at a time and must be released afterwards, preferably through
+ * {@link #withReader(Callback)} and {@link #withWriter(Callback)}.
+ * Connections are kept open for the whole life of the pool, so statements from
+ * {@link SQLiteConnection#cachedStatement(String)} and {@link SharedStatement} stay prepared across leases.
+ * <p>
+ * Thread safe.
+ */
+public final class SQLiteConnectionPool implements AutoCloseable {
+
+    private final SQLiteConnection writer;
+    private final SQLiteConnection[] readers;
+    /* Idle and leased connections and the closed flag are guarded by this, lease waits on this */
+    private final ArrayDeque<SQLiteConnection> idleWriter = new ArrayDeque<>(1);
+    private final ArrayDeque<SQLiteConnection> idleReaders;
+    private final Set<SQLiteConnection> leased = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private volatile long leaseTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private boolean closed = false;
+
+    private SQLiteConnectionPool(@NotNull SQLiteConnection writer, @NotNull SQLiteConnection[] readers) {
+        this.writer = writer;
+        this.readers = readers;
+        this.idleReaders = new ArrayDeque<>(Math.max(readers.length, 1));
+        idleWriter.add(writer);
+        for (SQLiteConnection reader : readers) {
+            idleReaders.add(reader);
+        }
+    }
+
+    /**
+     * Open the writer connection through {@link SQLiteConnection#open(SQLiteDelegate)}, switch the database to WAL mode
+     * and then open the reader connections with {@link SQLiteConnection#SQLITE_OPEN_READONLY}.
+     * Readers don't call {@link SQLiteDelegate#onConfigure(SQLiteConnection)}, like any other read-only connection.
+     * @param delegate of the database, must have a file
+     * @param readerCount amount of reader connections, if 0, readers lease the writer connection instead
+     * @throws SQLiteException on any error
+     */
+    public static @NotNull SQLiteConnectionPool open(@NotNull SQLiteDelegate delegate, int readerCount) throws SQLiteException {
+        final File file = delegate.file;
+        if (file == null) throw new IllegalArgumentException("In-memory databases can't be shared by multiple connections");
+        if (readerCount < 0) throw new IllegalArgumentException("readerCount must not be negative");
+
+        final SQLiteConnection writer = SQLiteConnection.open(delegate);
+        final ArrayList<SQLiteConnection> readers = new ArrayList<>(readerCount);
+        try {
+            final String journalMode = writer.pragma("PRAGMA journal_mode=WAL");
+            if (!"wal".equalsIgnoreCase(journalMode)) {
+                throw new SQLiteException("Could not switch database to WAL mode, journal mode is " + journalMode + ": " + file);
+            }
+
+            final int readerFlags = (delegate.openFlags & ~(SQLITE_OPEN_READWRITE | SQLITE_OPEN_CREATE)) | SQLITE_OPEN_READONLY;
+            for (int i = 0; i < readerCount; i++) {
+                readers.add(SQLiteConnection.open(delegate, readerFlags));
+            }
+        } catch (Throwable t) {
+            for (SQLiteConnection reader : readers) {
+                try {
+                    reader.close();
+                } catch (Throwable closeT) {
+                    t.addSuppressed(closeT);
+                }
+            }
+            try {
+                writer.close();
+            } catch (Throwable closeT) {
+                t.addSuppressed(closeT);
+            }
+            throw t;
+        }
+        return new SQLiteConnectionPool(writer, readers.toArray(new SQLiteConnection[0]));
+    }
+
+    /** @return amount of reader connections */
+    public int readerCount() {
+        return readers.length;
+    }
+
+    /**
+     * Set how long {@link #withReader(Callback)} and {@link #withWriter(Callback)} wait for a free connection.
+     * Default is 30 seconds.
+     */
+    public void setLeaseTimeout(long timeout, @NotNull TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must not be negative");
+        leaseTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    private synchronized @NotNull SQLiteConnection lease(@NotNull ArrayDeque<SQLiteConnection> queue, long timeout, @NotNull TimeUnit unit) {
+        long remainingNanos = unit.toNanos(timeout);
+        while (true) {
+            // Checked after each wait, close() wakes the waiting threads
+            if (closed) throw new IllegalStateException("Pool is closed");
+            final SQLiteConnection connection = queue.poll();
+            if (connection != null) {
+                leased.add(connection);
+                return connection;
+            }
+            if (remainingNanos <= 0) {
+                throw new SQLiteDatabaseLockedException("Timed out waiting for a connection after " + unit.toMillis(timeout) + " ms");
+            }
+            final long waitStart = System.nanoTime();
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLiteInterruptedException("Interrupted while waiting for a connection", e);
+            }
+            remainingNanos -= System.nanoTime() - waitStart;
+        }
+    }
+
+    /**
+     * Lease a read-only connection, waiting at most given time for one to become free.
+     * It must be returned through {@link #release(SQLiteConnection)}.
+     * When the pool has no readers, the writer is leased instead.
+     * @throws SQLiteDatabaseLockedException on timeout
+     * @throws SQLiteInterruptedException when the thread is interrupted while waiting
+     * @throws IllegalStateException when the pool is closed, also while waiting
+     */
+    public @NotNull SQLiteConnection leaseReader(long timeout, @NotNull TimeUnit unit) {
+        return lease(readers.length == 0 ? idleWriter : idleReaders, timeout, unit);
+    }
+
+    /**
+     * Lease the writer connection, waiting at most given time for it to become free.
+     * It must be returned through {@link #release(SQLiteConnection)}.
+     * @throws SQLiteDatabaseLockedException on timeout
+     * @throws SQLiteInterruptedException when the thread is interrupted while waiting
+     * @throws IllegalStateException when the pool is closed, also while waiting
+     */
+    public @NotNull SQLiteConnection leaseWriter(long timeout, @NotNull TimeUnit unit) {
+        return lease(idleWriter, timeout, unit);
+    }
+
+    /**
+     * Return a leased connection to the pool.
+     * If it is still in a transaction, the transaction is rolled back and {@link IllegalStateException} is thrown.
+     * If the pool has been closed in the meantime, the connection is closed.
+     * @throws IllegalStateException if the connection is not leased, for example when it is released twice
+     */
+    public void release(@NotNull SQLiteConnection connection) {
+        final ArrayDeque<SQLiteConnection> queue;
+        if (connection == writer) {
+            queue = idleWriter;
+        } else {
+            ArrayDeque<SQLiteConnection> readerQueue = null;
+            for (SQLiteConnection reader : readers) {
+                if (reader == connection) {
+                    readerQueue = idleReaders;
+                    break;
+                }
+            }
+            if (readerQueue == null) throw new IllegalArgumentException("Connection does not belong to this pool");
+            queue = readerQueue;
+        }
+        synchronized (this) {
+            // Before the rollback, the connection may already be leased by someone else
+            if (!leased.remove(connection)) throw new IllegalStateException("Connection released more times than leased");
+        }
+
+        RuntimeException transactionError = null;
+        if (connection.inTransaction()) {
+            transactionError = new IllegalStateException("Connection returned to the pool in transaction, rolling back");
+            try {
+                connection.abortTransaction();
+            } catch (RuntimeException e) {
+                transactionError.addSuppressed(e);
+            }
+        }
+
+        synchronized (this) {
+            if (closed) {
+                connection.close();
+            } else {
+                queue.add(connection);
+                notifyAll();
+            }
+        }
+        if (transactionError != null) throw transactionError;
+    }
+
+    /** Called with a leased connection. */
+    public interface Callback<T> {
+        T run(@NotNull SQLiteConnection connection);
+    }
+
+    /**
+     * Run the callback with a leased read-only connection and release it afterwards.
+     * @return the result of the callback
+     * @throws SQLiteDatabaseLockedException when no reader becomes free within the lease timeout
+     * @see #setLeaseTimeout(long, TimeUnit)
+     */
+    public <T> T withReader(@NotNull Callback<T> callback) {
+        final SQLiteConnection connection = leaseReader(leaseTimeoutNanos, TimeUnit.NANOSECONDS);
+        try {
+            return callback.run(connection);
+        } finally {
+            release(connection);
+        }
+    }
+
+    /**
+     * Run the callback with the leased writer connection and release it afterwards.
+     * @return the result of the callback
+     * @throws SQLiteDatabaseLockedException when the writer does not become free within the lease timeout
+     * @see #setLeaseTimeout(long, TimeUnit)
+     */
+    public <T> T withWriter(@NotNull Callback<T> callback) {
+        final SQLiteConnection connection = leaseWriter(leaseTimeoutNanos, TimeUnit.NANOSECONDS);
+        try {
+            return callback.run(connection);
+        } finally {
+            release(connection);
+        }
+    }
+
+    /**
+     * Close all idle connections. Connections which are currently leased are closed when they are released.
+     * Threads waiting for a connection fail with {@link IllegalStateException}.
+     * Repeated calls are no-ops.
+     */
+    @Override
+    public void close() throws SQLiteException {
+        final ArrayList<SQLiteConnection> idle = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            idle.addAll(idleReaders);
+            idle.addAll(idleWriter);// Last, so that it can checkpoint the WAL after the readers are gone
+            idleReaders.clear();
+            idleWriter.clear();
+            notifyAll();
+        }
+
+        Throwable result = null;
+        for (SQLiteConnection connection : idle) {
+            try {
+                connection.close();
+            } catch (Throwable e) {
+                if (result == null) {
+                    result = e;
+                } else {
+                    result.addSuppressed(e);
+                }
+            }
+        }
+        if (result instanceof RuntimeException) throw (RuntimeException) result;
+        if (result instanceof Error) throw (Error) result;
+    }
+}
@@ -0,0 +1,78 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Snapshot of runtime status of a single {@link SQLiteConnection}, obtained from {@link SQLiteConnection#status(boolean)}.
+ * Counters accumulate since the connection was opened or since the last reset.
+ * <p>
+ * Many {@link #cacheMisses} compared to {@link #cacheHits} suggest that the page cache is too small
+ * ({@code PRAGMA cache_size}), many {@link #lookasideMissesFull} that the lookaside memory is too small.
+ * @see <a href="https://www.sqlite.org/c3ref/c_dbstatus_options.html">SQLite documentation</a>
+ */
+public final class SQLiteConnectionStatus {
+    /* Order must match sDbStatusOps in SQLiteNative.cpp */
+    static final int VALUE_COUNT = 13;
+
+    /** Number of page cache hits (SQLITE_DBSTATUS_CACHE_HIT) */
+    public final long cacheHits;
+    /** Number of page cache misses (SQLITE_DBSTATUS_CACHE_MISS) */
+    public final long cacheMisses;
+    /** Number of dirty cache entries written to disk (SQLITE_DBSTATUS_CACHE_WRITE) */
+    public final long cacheWrites;
+    /** Number of dirty cache entries written to disk in the middle of a transaction, because the cache was full (SQLITE_DBSTATUS_CACHE_SPILL) */
+    public final long cacheSpills;
+    /** Number of lookaside memory slots currently in use (SQLITE_DBSTATUS_LOOKASIDE_USED) */
+    public final long lookasideUsed;
+    /** Maximum number of lookaside memory slots in use at once (SQLITE_DBSTATUS_LOOKASIDE_USED high-water mark) */
+    public final long lookasideUsedHighwater;
+    /** Number of allocations satisfied from lookaside memory (SQLITE_DBSTATUS_LOOKASIDE_HIT) */
+    public final long lookasideHits;
+    /** Number of allocations that were too large for lookaside memory (SQLITE_DBSTATUS_LOOKASIDE_MISS_SIZE) */
+    public final long lookasideMissesSize;
+    /** Number of allocations that could not use lookaside memory, because it was all in use (SQLITE_DBSTATUS_LOOKASIDE_MISS_FULL) */
+    public final long lookasideMissesFull;
+    /** Approximate number of bytes of heap memory used by the page cache (SQLITE_DBSTATUS_CACHE_USED) */
+    public final long cacheMemoryUsed;
+    /** Like {@link #cacheMemoryUsed}, but memory of caches shared with other connections is divided between them (SQLITE_DBSTATUS_CACHE_USED_SHARED) */
+    public final long cacheMemoryUsedShared;
+    /** Approximate number of bytes of heap memory used to store the schema (SQLITE_DBSTATUS_SCHEMA_USED) */
+    public final long schemaMemoryUsed;
+    /** Approximate number of bytes of heap and lookaside memory used by all prepared statements (SQLITE_DBSTATUS_STMT_USED) */
+    public final long statementMemoryUsed;
+
+    SQLiteConnectionStatus(@NotNull long[] values) {
+        cacheHits = values[0];
+        cacheMisses = values[1];
+        cacheWrites = values[2];
+        cacheSpills = values[3];
+        lookasideUsed = values[4];
+        lookasideUsedHighwater = values[5];
+        lookasideHits = values[6];
+        lookasideMissesSize = values[7];
+        lookasideMissesFull = values[8];
+        cacheMemoryUsed = values[9];
+        cacheMemoryUsedShared = values[10];
+        schemaMemoryUsed = values[11];
+        statementMemoryUsed = values[12];
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteConnectionStatus{" +
+                "cacheHits=" + cacheHits +
+                ", cacheMisses=" + cacheMisses +
+                ", cacheWrites=" + cacheWrites +
+                ", cacheSpills=" + cacheSpills +
+                ", lookasideUsed=" + lookasideUsed +
+                ", lookasideUsedHighwater=" + lookasideUsedHighwater +
+                ", lookasideHits=" + lookasideHits +
+                ", lookasideMissesSize=" + lookasideMissesSize +
+                ", lookasideMissesFull=" + lookasideMissesFull +
+                ", cacheMemoryUsed=" + cacheMemoryUsed +
+                ", cacheMemoryUsedShared=" + cacheMemoryUsedShared +
+                ", schemaMemoryUsed=" + schemaMemoryUsed +
+                ", statementMemoryUsed=" + statementMemoryUsed +
+                '}';
+    }
+}
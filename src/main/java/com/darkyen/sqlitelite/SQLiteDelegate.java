@@ -3,6 +3,7 @@ package com.darkyen.sqlitelite;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.util.Log;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
@@ -31,6 +32,18 @@ public abstract class SQLiteDelegate {
     /** True if foreign key constraints are enabled. Default is false. */
     protected boolean foreignKeyConstraintsEnabled = false;
 
+    static final int DEFAULT_STATEMENT_CACHE_SIZE = 16;
+    /**
+     * Maximum amount of idle statements kept by {@link SQLiteConnection#cachedStatement(String)}.
+     * Default is 16.
+     */
+    protected int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    /**
+     * How to wait when the database is locked by another connection.
+     * Default is {@link SQLiteBusyHandler#DEFAULT}.
+     */
+    protected @NotNull SQLiteBusyHandler busyHandler = SQLiteBusyHandler.DEFAULT;
+
     /**
      * Create a new delegate. Does not create the database, just this object.
      * @param file of the database or null for in-memory database
@@ -0,0 +1,45 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reactive Streams interfaces, equivalent to {@code java.util.concurrent.Flow}, which is not available before API 30.
+ * They are trivial to adapt to Flow or to any Reactive Streams library.
+ * @see SQLiteRowPublisher
+ * @see <a href="https://www.reactive-streams.org/">Reactive Streams</a>
+ */
+public final class SQLiteFlow {
+    private SQLiteFlow() {}
+
+    /** Producer of items, which are delivered only when requested by the subscriber. */
+    public interface Publisher<T> {
+        /** Start delivering items to the subscriber, starting with {@link Subscriber#onSubscribe(Subscription)}. */
+        void subscribe(@NotNull Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receiver of items. The methods are called serially, never concurrently.
+     * After {@link #onComplete()} or {@link #onError(Throwable)}, no more methods are called.
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(@NotNull Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(@NotNull Throwable throwable);
+
+        void onComplete();
+    }
+
+    /** Link between publisher and subscriber, through which the subscriber controls the flow. */
+    public interface Subscription {
+        /**
+         * Request {@code n} more items. Demand accumulates, {@link Long#MAX_VALUE} means unbounded.
+         * @param n must be positive, otherwise the subscriber receives {@link IllegalArgumentException} through onError
+         */
+        void request(long n);
+
+        /** Stop delivering items. Some items may still be delivered, if they were already on the way. */
+        void cancel();
+    }
+}
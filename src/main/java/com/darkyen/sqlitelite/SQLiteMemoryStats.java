@@ -0,0 +1,65 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Snapshot of process-wide memory usage of SQLite, obtained from {@link SQLiteRuntime#memoryStats(boolean)}.
+ * High-water marks accumulate since SQLite was initialized or since the last reset.
+ * <p>
+ * {@link #memoryUsedHighwater} under a realistic workload is a good basis for the soft heap limit.
+ * @see <a href="https://www.sqlite.org/c3ref/c_status_malloc_count.html">SQLite documentation</a>
+ */
+public final class SQLiteMemoryStats {
+    /* Order must match sMemoryStatusOps in SQLiteNative.cpp */
+    static final int VALUE_COUNT = 10;
+
+    /** Number of bytes of heap memory currently allocated by SQLite (SQLITE_STATUS_MEMORY_USED) */
+    public final long memoryUsed;
+    /** Maximum number of bytes of heap memory allocated by SQLite at once (SQLITE_STATUS_MEMORY_USED high-water mark) */
+    public final long memoryUsedHighwater;
+    /** Number of separate heap allocations currently held by SQLite (SQLITE_STATUS_MALLOC_COUNT) */
+    public final long mallocCount;
+    /** Maximum number of separate heap allocations held by SQLite at once (SQLITE_STATUS_MALLOC_COUNT high-water mark) */
+    public final long mallocCountHighwater;
+    /** Size of the largest heap allocation requested by SQLite (SQLITE_STATUS_MALLOC_SIZE high-water mark) */
+    public final long largestMalloc;
+    /** Number of pages currently used from the preallocated page cache memory, if any (SQLITE_STATUS_PAGECACHE_USED) */
+    public final long pageCacheUsed;
+    /** Maximum number of pages used from the preallocated page cache memory at once (SQLITE_STATUS_PAGECACHE_USED high-water mark) */
+    public final long pageCacheUsedHighwater;
+    /** Number of bytes of page cache allocations which did not fit into the preallocated page cache memory (SQLITE_STATUS_PAGECACHE_OVERFLOW) */
+    public final long pageCacheOverflow;
+    /** Maximum of {@link #pageCacheOverflow} (SQLITE_STATUS_PAGECACHE_OVERFLOW high-water mark) */
+    public final long pageCacheOverflowHighwater;
+    /** Size of the largest page cache allocation (SQLITE_STATUS_PAGECACHE_SIZE high-water mark) */
+    public final long largestPageCacheAllocation;
+
+    SQLiteMemoryStats(@NotNull long[] values) {
+        memoryUsed = values[0];
+        memoryUsedHighwater = values[1];
+        mallocCount = values[2];
+        mallocCountHighwater = values[3];
+        largestMalloc = values[4];
+        pageCacheUsed = values[5];
+        pageCacheUsedHighwater = values[6];
+        pageCacheOverflow = values[7];
+        pageCacheOverflowHighwater = values[8];
+        largestPageCacheAllocation = values[9];
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteMemoryStats{" +
+                "memoryUsed=" + memoryUsed +
+                ", memoryUsedHighwater=" + memoryUsedHighwater +
+                ", mallocCount=" + mallocCount +
+                ", mallocCountHighwater=" + mallocCountHighwater +
+                ", largestMalloc=" + largestMalloc +
+                ", pageCacheUsed=" + pageCacheUsed +
+                ", pageCacheUsedHighwater=" + pageCacheUsedHighwater +
+                ", pageCacheOverflow=" + pageCacheOverflow +
+                ", pageCacheOverflowHighwater=" + pageCacheOverflowHighwater +
+                ", largestPageCacheAllocation=" + largestPageCacheAllocation +
+                '}';
+    }
+}
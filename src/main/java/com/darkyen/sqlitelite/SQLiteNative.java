@@ -1,26 +1,47 @@
 package com.darkyen.sqlitelite;
 
+import android.database.sqlite.SQLiteException;
+import dalvik.annotation.optimization.CriticalNative;
+import dalvik.annotation.optimization.FastNative;
+
+import java.nio.ByteBuffer;
+
 final class SQLiteNative {
     private SQLiteNative() {}
 
     static {
         System.loadLibrary("sqlite3l");
+        nativeInitialize(SQLiteRuntime.initialize());
     }
 
+    static final int SQLITE_OK = 0;
+
+    /** Whether the {@link CriticalNative} methods are registered (only since API 26) and should be used instead of the standard ones. */
+    static final boolean CRITICAL_NATIVES_REGISTERED = nativeCriticalNativesRegistered();
+
     static native long nativeOpen(String path, int openFlags);
     static native void nativeClose(long connectionPtr);
-    static native long nativePrepareStatement(long connectionPtr, String sql);
+    static native long nativePrepareStatement(long connectionPtr, String sql, int prepFlags);
     static native void nativeFinalizeStatement(long connectionPtr, long statementPtr);
+    @FastNative
     static native void nativeBindNull(long connectionPtr, long statementPtr,
                                               int index);
     static native void nativeBindLong(long connectionPtr, long statementPtr,
                                               int index, long value);
     static native void nativeBindDouble(long connectionPtr, long statementPtr,
                                                 int index, double value);
+    @FastNative
     static native void nativeBindString(long connectionPtr, long statementPtr,
                                                 int index, String value);
+    @FastNative
     static native void nativeBindBlob(long connectionPtr, long statementPtr,
                                               int index, byte[] value);
+    @FastNative
+    static native void nativeBindBlobRegion(long connectionPtr, long statementPtr,
+                                              int index, byte[] value, int offset, int length);
+    @FastNative
+    static native void nativeBindBlobDirect(long connectionPtr, long statementPtr,
+                                              int index, ByteBuffer value, int position, int length);
 
     static native void nativeExecuteAndReset(long connectionPtr, long statementPtr);
     static native void nativeExecuteIgnoreAndReset(long connectionPtr, long statementPtr);
@@ -31,15 +52,92 @@ final class SQLiteNative {
     static native long nativeExecuteForLastInsertedRowIDAndReset(long connectionPtr, long statementPtr);
     static native long nativeExecuteForChangedRowsAndReset(long connectionPtr, long statementPtr);
 
+    static native int nativeTryExecuteAndReset(long statementPtr);
+    static native long nativeTryExecuteForChangedRowsAndReset(long connectionPtr, long statementPtr);
+
     static native boolean nativeCursorStep(long connectionPtr, long statementPtr);
     static native long nativeCursorGetLong(long connectionPtr, long statementPtr, int index);
     static native double nativeCursorGetDouble(long connectionPtr, long statementPtr, int index);
+    @FastNative
     static native String nativeCursorGetString(long connectionPtr, long statementPtr, int index);
+    @FastNative
+    static native int nativeCursorGetUtf8(long connectionPtr, long statementPtr, int index, byte[] out);
+    @FastNative
     static native byte[] nativeCursorGetBlob(long connectionPtr, long statementPtr, int index);
+    @FastNative
+    static native int nativeCursorGetBlobLength(long connectionPtr, long statementPtr, int index);
+    @FastNative
+    static native int nativeCursorGetBlobIntoArray(long connectionPtr, long statementPtr, int index, byte[] out, int offset, int end);
+    @FastNative
+    static native int nativeCursorGetBlobIntoBuffer(long connectionPtr, long statementPtr, int index, ByteBuffer out, int position, int limit);
+    static native boolean nativeCursorStepInto(long connectionPtr, long statementPtr, boolean stepFirst, long[] longs, double[] doubles, Object[] refs);
+    static native int nativeColumnCount(long statementPtr);
+    /* Fills SQLiteStatementStats.COUNTER_COUNT counters */
+    static native void nativeStatementStatus(long statementPtr, boolean reset, long[] out);
+    static native String nativeStatementSql(long statementPtr);
+    static native int nativeCursorFillWindow(long connectionPtr, long statementPtr, ByteBuffer window, int maxRows, boolean stepFirst);
+    static final int BATCH_RESULT_NONE = 0;
+    static final int BATCH_RESULT_ROW_ID = 1;
+    static final int BATCH_RESULT_CHANGED_ROWS = 2;
+    static native void nativeExecuteBatch(long connectionPtr, long statementPtr, ByteBuffer batch, int size, int rowCount, int parameterCount, int resultMode, long[] results);
     static native void nativeResetStatement(long statementPtr);
     static native void nativeClearBindings(long statementPtr);
 
+    /* Errors are returned as SQLite result codes, use nativeErrorException to get the exception */
+    @CriticalNative
+    static native int nativeBindLongCritical(long statementPtr, int index, long value);
+    @CriticalNative
+    static native int nativeBindDoubleCritical(long statementPtr, int index, double value);
+    /* Errors are not reported, the column index must be valid */
+    @CriticalNative
+    static native long nativeCursorGetLongCritical(long statementPtr, int index);
+    @CriticalNative
+    static native double nativeCursorGetDoubleCritical(long statementPtr, int index);
+    @CriticalNative
+    static native void nativeResetStatementCritical(long statementPtr);
+    @CriticalNative
+    static native void nativeClearBindingsCritical(long statementPtr);
+    static native SQLiteException nativeErrorException(long connectionPtr, String message);
+    static native boolean nativeCriticalNativesRegistered();
+
+    static native long nativeBlobOpen(long connectionPtr, String database, String table, String column, long rowId, boolean writable);
+    static native void nativeBlobClose(long connectionPtr, long blobPtr);
+    static native int nativeBlobBytes(long blobPtr);
+    static native void nativeBlobReopen(long connectionPtr, long blobPtr, long rowId);
+    static native void nativeBlobReadArray(long connectionPtr, long blobPtr, int blobOffset, byte[] array, int offset, int length);
+    static native void nativeBlobWriteArray(long connectionPtr, long blobPtr, int blobOffset, byte[] array, int offset, int length);
+    static native void nativeBlobReadBuffer(long connectionPtr, long blobPtr, int blobOffset, ByteBuffer buffer, int position, int length);
+    static native void nativeBlobWriteBuffer(long connectionPtr, long blobPtr, int blobOffset, ByteBuffer buffer, int position, int length);
+
+    static native long nativeCreateConnectionState();
+    static native void nativeFreeConnectionState(long statePtr);
+    static native void nativeSetBusyHandler(long connectionPtr, long statePtr, int strategy, int spinCount,
+                                            long initialDelayNanos, long maxDelayNanos, long timeoutNanos);
+    static native long nativeBusyInvocations(long statePtr);
+    static native long nativeBusyWaitNanos(long statePtr);
+
+    /* Fills SQLiteConnectionStatus.VALUE_COUNT values */
+    static native void nativeDbStatus(long connectionPtr, boolean reset, long[] out);
+    /** @param capacity of the profile buffer, 0 to disable profiling */
+    static native void nativeSetProfiling(long connectionPtr, long statePtr, int capacity);
+    static native long nativeProfileWritten(long statePtr);
+    /* Fills 2 + 2 * SQLiteConnection.PROFILE_DRAIN_BATCH values, returns the amount of events */
+    static native int nativeDrainProfile(long statePtr, long[] out);
+    /** @param thresholdNanos 0 to stop capturing slow queries and discard the captured ones */
+    static native void nativeSetSlowQueryThreshold(long connectionPtr, long statePtr, long thresholdNanos);
+    /* Fills 1 + SQLiteStatementStats.COUNTER_COUNT values and 2 strings, returns false if no slow query is pending */
+    static native boolean nativePopSlowQuery(long statePtr, long[] values, String[] sqlOut);
+    /** @param budgetNanos 0 for no limit */
+    static native void nativeSetQueryBudget(long connectionPtr, long statePtr, long budgetNanos);
+    /** @param deadlineNanos on the {@link System#nanoTime()} clock, ignored if not hasDeadline */
+    static native void nativeSetDeadline(long connectionPtr, long statePtr, boolean hasDeadline, long deadlineNanos);
+
     static native String nativeExecutePragma(long connectionPtr, String sql);
     static native void nativeInterrupt(long connectionPtr);
     static native int nativeReleaseMemory();
+
+    /** Configure and initialize SQLite, called exactly once, before anything else. */
+    static native void nativeInitialize(boolean memoryStatus);
+    /* Fills SQLiteMemoryStats.VALUE_COUNT values */
+    static native void nativeMemoryStatus(boolean reset, long[] out);
 }
@@ -0,0 +1,265 @@
+package com.darkyen.sqlitelite;
+
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes rows of a cursor of a {@link SQLiteStatement}, stepping the cursor only as rows are requested.
+ * Requested rows are fetched in batches of up to {@code batchSize} rows through a {@link RowWindow}
+ * and delivered one by one, as immutable {@link Row}s which may be passed to other threads.
+ * <p>
+ * All cursor work and all subscriber calls happen in tasks of the executor. Those tasks must not run concurrently
+ * with any other use of the connection of the statement. A single-thread executor which owns the connection fits,
+ * as does {@code Runnable::run}, when requests always come from the thread which owns the connection.
+ * <p>
+ * Only one subscriber is allowed, the cursor can be iterated only once.
+ * The statement is reset when the subscriber cancels, or when all rows are delivered or on error,
+ * after which it can be used again (bindings are kept).
+ */
+public final class SQLiteRowPublisher implements SQLiteFlow.Publisher<SQLiteRowPublisher.Row> {
+    private static final String TAG = "SQLiteRowPublisher";
+
+    /** Values of a single row. Immutable. */
+    public static final class Row {
+        private final Object[] values;
+
+        Row(Object[] values) {
+            this.values = values;
+        }
+
+        /** @return amount of columns */
+        public int columnCount() {
+            return values.length;
+        }
+
+        /** @return {@link Long}, {@link Double}, {@link String}, byte[] or null for NULL */
+        public @Nullable Object get(int column) {
+            return values[column];
+        }
+
+        /** @return true if the value is NULL */
+        public boolean isNull(int column) {
+            return values[column] == null;
+        }
+
+        /** Get long value. FLOAT is truncated, NULL is returned as 0. */
+        public long getLong(int column) {
+            final Object value = values[column];
+            if (value == null) return 0;
+            return ((Number) value).longValue();
+        }
+
+        /** Get double value. NULL is returned as 0.0. */
+        public double getDouble(int column) {
+            final Object value = values[column];
+            if (value == null) return 0.0;
+            return ((Number) value).doubleValue();
+        }
+
+        /** Get TEXT value. NULL is returned as null. */
+        public @Nullable String getString(int column) {
+            return (String) values[column];
+        }
+
+        /** Get BLOB value. NULL is returned as null. The array must not be modified. */
+        public @Nullable byte[] getBlob(int column) {
+            return (byte[]) values[column];
+        }
+    }
+
+    private final SQLiteStatement statement;
+    private final Executor executor;
+    private final RowWindow window;
+    private final int batchSize;
+    private boolean subscribed = false;
+
+    /**
+     * @param statement whose cursor is published, must not be in cursor mode
+     * @param executor runs the cursor work and the subscriber calls
+     * @param batchSize maximum amount of rows fetched at once
+     * @param windowCapacityBytes of the {@link RowWindow} used for fetching, all values of a row must fit into it
+     */
+    public SQLiteRowPublisher(@NotNull SQLiteStatement statement, @NotNull Executor executor, int batchSize, int windowCapacityBytes) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive");
+        this.statement = statement;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.window = new RowWindow(windowCapacityBytes, batchSize);
+    }
+
+    /**
+     * Publisher with 64 kB window.
+     * @see #SQLiteRowPublisher(SQLiteStatement, Executor, int, int)
+     */
+    public SQLiteRowPublisher(@NotNull SQLiteStatement statement, @NotNull Executor executor, int batchSize) {
+        this(statement, executor, batchSize, 64 * 1024);
+    }
+
+    @Override
+    public void subscribe(@NotNull SQLiteFlow.Subscriber<? super Row> subscriber) {
+        final boolean alreadySubscribed;
+        synchronized (this) {
+            alreadySubscribed = subscribed;
+            subscribed = true;
+        }
+        if (alreadySubscribed) {
+            subscriber.onSubscribe(new SQLiteFlow.Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("Publisher already has a subscriber"));
+            return;
+        }
+        final RowSubscription subscription = new RowSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class RowSubscription implements SQLiteFlow.Subscription, Runnable {
+        private final SQLiteFlow.Subscriber<? super Row> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        /** Amount of pending drain requests, the drain is scheduled when it goes from 0 */
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest = null;
+        /** Accessed only from drain */
+        private boolean finished = false;
+
+        RowSubscription(SQLiteFlow.Subscriber<? super Row> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " rows, must be positive");
+            } else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n;
+                    if (next < 0) next = Long.MAX_VALUE;
+                } while (!demand.compareAndSet(current, next));
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int drains = 1;
+            do {
+                drain();
+                drains = pendingDrains.addAndGet(-drains);
+            } while (drains != 0);
+        }
+
+        private void drain() {
+            if (finished) return;
+            final Throwable invalidRequest = this.invalidRequest;
+            if (cancelled || invalidRequest != null) {
+                finish();
+                if (!cancelled && invalidRequest != null) subscriber.onError(invalidRequest);
+                return;
+            }
+
+            long requested = demand.get();
+            long delivered = 0;
+            while (delivered < requested) {
+                final boolean hasRows;
+                try {
+                    hasRows = statement.cursorNextBatch(window, (int) Math.min(requested - delivered, batchSize));
+                } catch (Throwable t) {
+                    finish();
+                    subscriber.onError(t);
+                    return;
+                }
+                if (!hasRows) {
+                    finish();
+                    subscriber.onComplete();
+                    return;
+                }
+
+                final int rowCount = window.rowCount();
+                for (int row = 0; row < rowCount; row++) {
+                    // No more signals after cancel, even if it arrived in the middle of the window
+                    if (cancelled) {
+                        finish();
+                        return;
+                    }
+                    try {
+                        subscriber.onNext(row(row));
+                    } catch (Throwable t) {
+                        // Subscriber broke the contract, treat it as cancelled
+                        Log.e(TAG, "onNext failed, cancelling", t);
+                        cancelled = true;
+                    }
+                }
+                delivered += rowCount;
+
+                if (cancelled) {
+                    finish();
+                    return;
+                }
+                if (delivered >= requested && requested != Long.MAX_VALUE) {
+                    // Take into account what was requested in the meantime
+                    requested = demand.addAndGet(-delivered);
+                    delivered = 0;
+                }
+            }
+        }
+
+        private @NotNull Row row(int row) {
+            final RowWindow window = SQLiteRowPublisher.this.window;
+            final Object[] values = new Object[window.columnCount()];
+            for (int column = 0; column < values.length; column++) {
+                switch (window.getType(row, column)) {
+                    case RowWindow.TYPE_INTEGER:
+                        values[column] = window.getLong(row, column);
+                        break;
+                    case RowWindow.TYPE_FLOAT:
+                        values[column] = window.getDouble(row, column);
+                        break;
+                    case RowWindow.TYPE_TEXT:
+                        values[column] = window.getString(row, column);
+                        break;
+                    case RowWindow.TYPE_BLOB:
+                        values[column] = window.getBlob(row, column);
+                        break;
+                    case RowWindow.TYPE_NULL:
+                    default:
+                        values[column] = null;
+                        break;
+                }
+            }
+            return new Row(values);
+        }
+
+        private void finish() {
+            finished = true;
+            try {
+                statement.resetCursor();
+            } catch (Throwable t) {
+                Log.e(TAG, "Failed to reset statement", t);
+            }
+        }
+    }
+}
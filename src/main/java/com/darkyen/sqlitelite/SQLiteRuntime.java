@@ -0,0 +1,59 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Process-wide configuration and state of the SQLite library.
+ * <p>
+ * SQLite is initialized when the native library is loaded, that is, when the first connection is opened.
+ * Configuration methods must be called before that.
+ */
+public final class SQLiteRuntime {
+    private SQLiteRuntime() {}
+
+    private static boolean initialized = false;
+    private static boolean memoryStatus = false;
+
+    /**
+     * Enable or disable memory accounting, which is needed for {@link #memoryStats(boolean)}.
+     * It is disabled by default, because it serializes all memory allocations of SQLite on a global mutex.
+     * @throws IllegalStateException if SQLite is already initialized
+     */
+    public static synchronized void setMemoryStatusEnabled(boolean enabled) {
+        if (initialized) throw new IllegalStateException("SQLite is already initialized");
+        memoryStatus = enabled;
+    }
+
+    /** @see #setMemoryStatusEnabled(boolean) */
+    public static synchronized boolean isMemoryStatusEnabled() {
+        return memoryStatus;
+    }
+
+    /** Called once, when the native library is loaded. Freezes the configuration. */
+    static synchronized boolean initialize() {
+        initialized = true;
+        return memoryStatus;
+    }
+
+    /**
+     * Get process-wide memory usage of SQLite. Initializes SQLite if not initialized yet.
+     * @param reset whether to reset the high-water marks after reading them
+     * @throws IllegalStateException if memory accounting is not {@link #setMemoryStatusEnabled(boolean) enabled}
+     * @see SQLiteMemoryStats
+     */
+    public static @NotNull SQLiteMemoryStats memoryStats(boolean reset) {
+        final long[] values = new long[SQLiteMemoryStats.VALUE_COUNT];
+        SQLiteNative.nativeMemoryStatus(reset, values);
+        // Checked only now, after the native call initialized SQLite and froze the configuration
+        if (!isMemoryStatusEnabled()) throw new IllegalStateException("Memory accounting is not enabled");
+        return new SQLiteMemoryStats(values);
+    }
+
+    /**
+     * Get process-wide memory usage of SQLite, without resetting it.
+     * @see #memoryStats(boolean)
+     */
+    public static @NotNull SQLiteMemoryStats memoryStats() {
+        return memoryStats(false);
+    }
+}
@@ -0,0 +1,41 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Statement execution which took longer than the threshold set by
+ * {@link SQLiteConnection#setSlowQueryListener(long, SQLiteConnection.SlowQueryListener)}.
+ * Everything except the query plan is captured when the execution finishes.
+ */
+public final class SQLiteSlowQuery {
+    /** SQL the statement was prepared from */
+    public final @NotNull String sql;
+    /** SQL with the bound parameters expanded into it, null if it could not be expanded (for example, when too long) */
+    public final @Nullable String expandedSql;
+    /** How long the execution took, as measured by SQLite (with millisecond resolution on Android) */
+    public final long nanos;
+    /** Counters of the statement. They accumulate over all executions since the statement was prepared or its counters were reset. */
+    public final @NotNull SQLiteStatementStats stats;
+    /** Output of {@code EXPLAIN QUERY PLAN}, one line per step, indented by nesting, null if the statement could not be explained */
+    public final @Nullable String queryPlan;
+
+    SQLiteSlowQuery(@NotNull String sql, @Nullable String expandedSql, long nanos, @NotNull SQLiteStatementStats stats, @Nullable String queryPlan) {
+        this.sql = sql;
+        this.expandedSql = expandedSql;
+        this.nanos = nanos;
+        this.stats = stats;
+        this.queryPlan = queryPlan;
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteSlowQuery{" +
+                "sql='" + sql + '\'' +
+                ", expandedSql='" + expandedSql + '\'' +
+                ", nanos=" + nanos +
+                ", stats=" + stats +
+                ", queryPlan='" + queryPlan + '\'' +
+                '}';
+    }
+}
@@ -1,18 +1,38 @@
 package com.darkyen.sqlitelite;
 
 import android.database.sqlite.SQLiteException;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
 import static com.darkyen.sqlitelite.SQLiteNative.nativeBindBlob;
+import static com.darkyen.sqlitelite.SQLiteNative.nativeBindBlobDirect;
+import static com.darkyen.sqlitelite.SQLiteNative.nativeBindBlobRegion;
 import static com.darkyen.sqlitelite.SQLiteNative.nativeBindDouble;
 import static com.darkyen.sqlitelite.SQLiteNative.nativeBindLong;
 import static com.darkyen.sqlitelite.SQLiteNative.nativeBindNull;
 import static com.darkyen.sqlitelite.SQLiteNative.nativeBindString;
 
+/**
+ * Prepared statement, obtained from {@link SQLiteConnection#statement(String)}.
+ * <p>
+ * Bound values are kept across executions until they are rebound or {@link #clearBindings() cleared}.
+ * Values are copied when bound, except for direct {@link ByteBuffer}s bound by {@link #bind(int, ByteBuffer)},
+ * which are read by SQLite in place during each execution - their content must not change while they are bound.
+ * The statement keeps a reference to them until {@link #clearBindings()} or {@link #close()}.
+ */
 public final class SQLiteStatement implements AutoCloseable {
     private final SQLiteConnection connection;
     int managementIndex = -1;
+    /** SQL of statements from {@link SQLiteConnection#cachedStatement(String)}, null for others */
+    @Nullable String cacheKey = null;
     private long statementPtr;
+    /** Sequence number of the first profile event that can belong to this statement,
+     * earlier events with the same pointer belong to a statement that was closed before this one was prepared */
+    long profileSince = 0;
 
     /** Not evaluating through a cursor,
      * ready to start cursor row or direct execution. */
@@ -23,7 +43,17 @@ public final class SQLiteStatement implements AutoCloseable {
     private static final int STATE_CURSOR_END = 2;
     /** Cursor errored out while iterating. Only reset is now possible. */
     private static final int STATE_CURSOR_ERROR = 3;
+    /** Cursor stepped to a row which did not fit into a {@link RowWindow}.
+     * The next cursor call must return this row without stepping. */
+    private static final int STATE_CURSOR_PENDING_ROW = 4;
     private int state = STATE_NORMAL;
+    /** Column count, read once per cursor run for checking indices of the critical getters, -1 if not read yet */
+    private int cursorColumnCount = -1;
+
+    /** Direct buffers bound without copying, indexed by parameter index, kept so that they are not freed while bound */
+    private ByteBuffer[] boundBuffers = null;
+    /** Reusable buffer for {@link #cursorGetString(int, StringBuilder)} */
+    private byte[] utf8Scratch = null;
 
     SQLiteStatement(SQLiteConnection connection, long statementPtr) {
         this.connection = connection;
@@ -43,25 +73,44 @@ public final class SQLiteStatement implements AutoCloseable {
         return ptr;
     }
 
+    /** @return the native pointer, 0 if closed */
+    long rawStatementPtr() {
+        return statementPtr;
+    }
+
     /** Bind NULL to the parameter at given index. Note that indices start at 1. */
     public void bindNull(int index) {
         assertNormalState();
         nativeBindNull(connection.connectionPtr(), statementPtr(), index);
+        releaseBoundBuffer(index);
     }
     /** Bind 1 or 0 to the parameter at given index. Note that indices start at 1. */
     public void bind(int index, boolean value) {
-        assertNormalState();
-        nativeBindLong(connection.connectionPtr(), statementPtr(), index, value ? 1L : 0L);
+        bind(index, value ? 1L : 0L);
     }
     /** Bind long to the parameter at given index. Note that indices start at 1. */
     public void bind(int index, long value) {
         assertNormalState();
-        nativeBindLong(connection.connectionPtr(), statementPtr(), index, value);
+        if (SQLiteNative.CRITICAL_NATIVES_REGISTERED) {
+            if (SQLiteNative.nativeBindLongCritical(statementPtr(), index, value) != SQLiteNative.SQLITE_OK) {
+                throw SQLiteNative.nativeErrorException(connection.connectionPtr(), null);
+            }
+        } else {
+            nativeBindLong(connection.connectionPtr(), statementPtr(), index, value);
+        }
+        releaseBoundBuffer(index);
     }
     /** Bind double to the parameter at given index. Note that indices start at 1. */
     public void bind(int index, double value) {
         assertNormalState();
-        nativeBindDouble(connection.connectionPtr(), statementPtr(), index, value);
+        if (SQLiteNative.CRITICAL_NATIVES_REGISTERED) {
+            if (SQLiteNative.nativeBindDoubleCritical(statementPtr(), index, value) != SQLiteNative.SQLITE_OK) {
+                throw SQLiteNative.nativeErrorException(connection.connectionPtr(), null);
+            }
+        } else {
+            nativeBindDouble(connection.connectionPtr(), statementPtr(), index, value);
+        }
+        releaseBoundBuffer(index);
     }
     /** Bind String or null to the parameter at given index. Note that indices start at 1. */
     public void bind(int index, String value) {
@@ -71,6 +120,7 @@ public final class SQLiteStatement implements AutoCloseable {
         } else {
             nativeBindString(connection.connectionPtr(), statementPtr(), index, value);
         }
+        releaseBoundBuffer(index);
     }
     /** Bind byte[] or null to the parameter at given index. Note that indices start at 1. */
     public void bind(int index, byte[] value) {
@@ -81,12 +131,80 @@ public final class SQLiteStatement implements AutoCloseable {
         } else {
             nativeBindBlob(connection.connectionPtr(), statementPtr(), index, value);
         }
+        releaseBoundBuffer(index);
+    }
+
+    /**
+     * Bind {@code length} bytes of {@code value} starting at {@code offset} as a BLOB to the parameter at given index.
+     * Note that indices start at 1.
+     */
+    public void bind(int index, @NotNull byte[] value, int offset, int length) {
+        assertNormalState();
+        if (offset < 0 || length < 0 || offset > value.length - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + " of " + value.length);
+        }
+        nativeBindBlobRegion(connection.connectionPtr(), statementPtr(), index, value, offset, length);
+        releaseBoundBuffer(index);
+    }
+    /**
+     * Bind the remaining bytes of {@code value} (between its position and limit) or null as a BLOB
+     * to the parameter at given index. Note that indices start at 1.
+     * The position of the buffer is not changed.
+     * <p>
+     * Direct buffers are not copied, SQLite reads them in place during each execution,
+     * so their content must not change until the parameter is rebound, {@link #clearBindings() cleared}
+     * or the statement is closed. See {@link SQLiteStatement}.
+     * Other buffers are copied immediately.
+     */
+    public void bind(int index, @Nullable ByteBuffer value) {
+        assertNormalState();
+        if (value == null) {
+            nativeBindNull(connection.connectionPtr(), statementPtr(), index);
+            releaseBoundBuffer(index);
+            return;
+        }
+        final int position = value.position();
+        final int length = value.remaining();
+        if (value.isDirect()) {
+            nativeBindBlobDirect(connection.connectionPtr(), statementPtr(), index, value, position, length);
+            ByteBuffer[] boundBuffers = this.boundBuffers;
+            if (boundBuffers == null || boundBuffers.length <= index) {
+                final ByteBuffer[] newBoundBuffers = new ByteBuffer[Math.max(index + 1, 8)];
+                if (boundBuffers != null) System.arraycopy(boundBuffers, 0, newBoundBuffers, 0, boundBuffers.length);
+                this.boundBuffers = boundBuffers = newBoundBuffers;
+            }
+            boundBuffers[index] = value;
+        } else if (value.hasArray()) {
+            nativeBindBlobRegion(connection.connectionPtr(), statementPtr(), index, value.array(), value.arrayOffset() + position, length);
+            releaseBoundBuffer(index);
+        } else {
+            final byte[] copy = new byte[length];
+            value.duplicate().get(copy);
+            nativeBindBlob(connection.connectionPtr(), statementPtr(), index, copy);
+            releaseBoundBuffer(index);
+        }
+    }
+
+    /** Forget the direct buffer previously bound to the parameter at given index, it is no longer read by SQLite. */
+    private void releaseBoundBuffer(int index) {
+        final ByteBuffer[] boundBuffers = this.boundBuffers;
+        if (boundBuffers != null && index >= 0 && index < boundBuffers.length) boundBuffers[index] = null;
+    }
+
+    private void releaseBoundBuffers() {
+        final ByteBuffer[] boundBuffers = this.boundBuffers;
+        if (boundBuffers != null) Arrays.fill(boundBuffers, null);
     }
 
     /** Remove all existing bindings. */
     public void clearBindings() {
         assertNormalState();
-        SQLiteNative.nativeClearBindings(statementPtr());
+        releaseBoundBuffers();
+        if (SQLiteNative.CRITICAL_NATIVES_REGISTERED) {
+            SQLiteNative.nativeClearBindingsCritical(statementPtr());
+        } else {
+            SQLiteNative.nativeClearBindings(statementPtr());
+        }
     }
 
 
@@ -112,6 +230,30 @@ public final class SQLiteStatement implements AutoCloseable {
         SQLiteNative.nativeExecuteAndReset(connection.connectionPtr(), statementPtr());
     }
 
+    /**
+     * Like {@link #executeForNothing()}, but errors are returned instead of thrown.
+     * Useful when failures are expected and frequent, for example constraint violations of an upsert,
+     * because creating an exception is much more expensive.
+     * Keeps any bindings.
+     * @return {@link SQLiteConnection#SQLITE_OK} on success, otherwise the extended result code
+     * (use {@code & 0xFF} to get the primary result code), {@link SQLiteConnection#SQLITE_ROW} if the statement returned rows
+     */
+    public int tryExecuteForNothing() {
+        assertNormalState();
+        return SQLiteNative.nativeTryExecuteAndReset(statementPtr());
+    }
+
+    /**
+     * Like {@link #executeForChangedRowCount()}, but errors are returned instead of thrown.
+     * Keeps any bindings.
+     * @return amount of changed rows on success (non-negative), otherwise negated extended result code
+     * @see #tryExecuteForNothing()
+     */
+    public long tryExecuteForChangedRowCount() {
+        assertNormalState();
+        return SQLiteNative.nativeTryExecuteForChangedRowsAndReset(connection.connectionPtr(), statementPtr());
+    }
+
     /**
      * Fully execute statement that is expected to return no rows
      * (such as CREATE, DROP, some PRAGMA etc.).
@@ -178,6 +320,51 @@ public final class SQLiteStatement implements AutoCloseable {
         return SQLiteNative.nativeExecuteForChangedRowsAndReset(connection.connectionPtr(), statementPtr());
     }
 
+    /**
+     * Execute this statement once for each row of the batch, all in a single native call.
+     * Each execution is like {@link #executeForNothing()}, with parameters bound from the batch row.
+     * Bindings are cleared afterwards.
+     * <p>
+     * When an execution fails, the previous rows stay executed, so wrap the call in a transaction if that is not desired.
+     * @throws SQLiteException on any error
+     * @throws IllegalArgumentException if the last row of the batch is incomplete
+     */
+    public void executeBatch(@NotNull ParameterBatch batch) {
+        executeBatch(batch, SQLiteNative.BATCH_RESULT_NONE, null);
+    }
+
+    /**
+     * Like {@link #executeBatch(ParameterBatch)}, but the ROWID of the row inserted by each execution
+     * (or -1 if no ID was inserted) is stored at the index of the batch row.
+     * On error, the results of the rows executed before it are stored as well.
+     * @param rowIDs at least {@link ParameterBatch#rowCount()} long
+     * @throws SQLiteException on any error
+     */
+    public void executeBatchForRowIDs(@NotNull ParameterBatch batch, @NotNull long[] rowIDs) {
+        executeBatch(batch, SQLiteNative.BATCH_RESULT_ROW_ID, rowIDs);
+    }
+
+    /**
+     * Like {@link #executeBatch(ParameterBatch)}, but the amount of rows changed by each execution
+     * is stored at the index of the batch row.
+     * On error, the results of the rows executed before it are stored as well.
+     * @param changedRowCounts at least {@link ParameterBatch#rowCount()} long
+     * @throws SQLiteException on any error
+     */
+    public void executeBatchForChangedRowCounts(@NotNull ParameterBatch batch, @NotNull long[] changedRowCounts) {
+        executeBatch(batch, SQLiteNative.BATCH_RESULT_CHANGED_ROWS, changedRowCounts);
+    }
+
+    private void executeBatch(@NotNull ParameterBatch batch, int resultMode, @Nullable long[] results) {
+        assertNormalState();
+        if (!batch.isComplete()) throw new IllegalArgumentException("Last row of the batch is incomplete");
+        final int rowCount = batch.rowCount();
+        if (results != null && results.length < rowCount) throw new IllegalArgumentException("Results array is too short, need " + rowCount);
+        if (rowCount == 0) return;
+        releaseBoundBuffers();// Bindings are cleared by the batch
+        SQLiteNative.nativeExecuteBatch(connection.connectionPtr(), statementPtr(), batch.buffer, batch.size(), rowCount, batch.parameterCount(), resultMode, results);
+    }
+
     /**
      * Execute this statement to get the next row of values.
      * The row is valid until called again or until {@link #cursorReset()} is called.
@@ -193,6 +380,9 @@ public final class SQLiteStatement implements AutoCloseable {
                 break;
             case STATE_CURSOR_END:
                 return false;// SQLite does not like step calls when it returned DONE
+            case STATE_CURSOR_PENDING_ROW:
+                state = STATE_CURSOR_ROW;
+                return true;
             case STATE_CURSOR_ERROR:
             default:
                 throw new IllegalStateException("Cursor needs to be reset after error");
@@ -202,14 +392,154 @@ public final class SQLiteStatement implements AutoCloseable {
         return result;
     }
 
+    /**
+     * Execute this statement to get the next row of values and read all of its columns at once,
+     * in a single native call. This is faster than calling the column getters one by one.
+     * <p>
+     * Value of column {@code i} is stored at index {@code i} of the arrays:
+     * <ul>
+     *     <li>INTEGER to {@code longs}, converted to double in {@code doubles}</li>
+     *     <li>FLOAT to {@code doubles}, converted to long in {@code longs}</li>
+     *     <li>TEXT as {@link String} and BLOB as {@code byte[]} to {@code refs}</li>
+     * </ul>
+     * All other array elements of read columns are set to 0, 0.0 or null.
+     * Any array may be null or shorter than {@link #columnCount()}, in which case the columns that do not fit are not read into it.
+     * <p>
+     * The row stays current, so the column getters can still be used on it.
+     * Do not mix with {@link #executeForNothing()} and related methods.
+     * @return true if there is another row, false if at the end (arrays are not modified)
+     * @throws SQLiteException on any error
+     * @see #cursorNextRow()
+     */
+    public boolean cursorNextRowInto(@Nullable long[] longs, @Nullable double[] doubles, @Nullable Object[] refs) {
+        final boolean stepFirst;
+        switch (state) {
+            case STATE_NORMAL:
+            case STATE_CURSOR_ROW:
+                stepFirst = true;
+                break;
+            case STATE_CURSOR_PENDING_ROW:
+                stepFirst = false;
+                break;
+            case STATE_CURSOR_END:
+                return false;
+            case STATE_CURSOR_ERROR:
+            default:
+                throw new IllegalStateException("Cursor needs to be reset after error");
+        }
+        state = STATE_CURSOR_ERROR;// Preemptively set error, will be changed later
+        final boolean result = SQLiteNative.nativeCursorStepInto(connection.connectionPtr(), statementPtr(), stepFirst, longs, doubles, refs);
+        state = result ? STATE_CURSOR_ROW : STATE_CURSOR_END;
+        return result;
+    }
+
+    /**
+     * @return the amount of columns in the result rows of this statement, 0 for statements that return no data
+     */
+    public int columnCount() {
+        return SQLiteNative.nativeColumnCount(statementPtr());
+    }
+
+    /** @return the SQL this statement was prepared from */
+    public @NotNull String sql() {
+        return SQLiteNative.nativeStatementSql(statementPtr());
+    }
+
+    /**
+     * Get runtime counters of this statement.
+     * @param reset whether to reset the counters to zero after reading them
+     * @see SQLiteStatementStats
+     */
+    public @NotNull SQLiteStatementStats stats(boolean reset) {
+        final long[] counters = new long[SQLiteStatementStats.COUNTER_COUNT];
+        SQLiteNative.nativeStatementStatus(statementPtr(), reset, counters);
+        return new SQLiteStatementStats(counters);
+    }
+
+    /**
+     * Get runtime counters of this statement, without resetting them.
+     * @see #stats(boolean)
+     */
+    public @NotNull SQLiteStatementStats stats() {
+        return stats(false);
+    }
+
+    /**
+     * Execute this statement to fill the window with as many next rows as fit, all in a single native call.
+     * This is considerably faster than {@link #cursorNextRow()} with column getters for large result sets.
+     * Previous contents of the window are overwritten.
+     * <p>
+     * Can be freely mixed with {@link #cursorNextRow()}, which continues after the last row in the window.
+     * Do not mix with {@link #executeForNothing()} and related methods.
+     * @return true if the window contains at least one row, false if at the end
+     * @throws SQLiteException on any error, including when a single row does not fit into an empty window
+     */
+    public boolean cursorNextBatch(@NotNull RowWindow window) {
+        return cursorNextBatch(window, window.maxRows);
+    }
+
+    /** Like {@link #cursorNextBatch(RowWindow)}, but fetches at most {@code maxRows}, if the window allows it. */
+    boolean cursorNextBatch(@NotNull RowWindow window, int maxRows) {
+        final boolean stepFirst;
+        switch (state) {
+            case STATE_NORMAL:
+            case STATE_CURSOR_ROW:
+                stepFirst = true;
+                break;
+            case STATE_CURSOR_PENDING_ROW:
+                stepFirst = false;
+                break;
+            case STATE_CURSOR_END:
+                window.clear();
+                return false;
+            case STATE_CURSOR_ERROR:
+            default:
+                throw new IllegalStateException("Cursor needs to be reset after error");
+        }
+        window.clear();
+        state = STATE_CURSOR_ERROR;// Preemptively set error, will be changed later
+        final int status = SQLiteNative.nativeCursorFillWindow(connection.connectionPtr(), statementPtr(), window.buffer, Math.min(maxRows, window.maxRows), stepFirst);
+        window.update();
+        switch (status) {
+            case RowWindow.STATUS_MORE:
+                state = STATE_CURSOR_ROW;
+                break;
+            case RowWindow.STATUS_PENDING:
+                state = STATE_CURSOR_PENDING_ROW;
+                break;
+            case RowWindow.STATUS_DONE:
+            default:
+                state = STATE_CURSOR_END;
+                break;
+        }
+        return window.rowCount() > 0;
+    }
+
     /**
      * Reset the cursor execution to be ready for another invocation.
-     * See {@link #cursorNextRow()} for more info.
+     * See {@link #cursorNextRow()} and {@link #cursorNextBatch(RowWindow)} for more info.
      */
     public void cursorReset() {
         if (state == STATE_NORMAL) throw new IllegalStateException("Not in cursor mode, nothing to reset");
         state = STATE_NORMAL;
-        SQLiteNative.nativeResetStatement(statementPtr());
+        cursorColumnCount = -1;// Statement may be reprepared on the next run
+        if (SQLiteNative.CRITICAL_NATIVES_REGISTERED) {
+            SQLiteNative.nativeResetStatementCritical(statementPtr());
+        } else {
+            SQLiteNative.nativeResetStatement(statementPtr());
+        }
+    }
+
+    /**
+     * Whether the index is a valid column of the current cursor row. Invalid index is the only error
+     * of reading an INTEGER or FLOAT, which the critical getters can't report, so they are used only when this is true.
+     */
+    private boolean isCursorColumn(int index) {
+        int columnCount = cursorColumnCount;
+        if (columnCount < 0) {
+            cursorColumnCount = columnCount = SQLiteNative.nativeColumnCount(statementPtr());
+        }
+        return index >= 0 && index < columnCount;
     }
 
     /**
@@ -218,8 +548,7 @@ public final class SQLiteStatement implements AutoCloseable {
      * @param index starts at 0
      */
     public boolean cursorGetBoolean(int index) {
-        assertCursorRowState();
-        return SQLiteNative.nativeCursorGetLong(connection.connectionPtr(), statementPtr(), index) != 0L;
+        return cursorGetLong(index) != 0L;
     }
     /**
      * Get LONG on the current row in specified column.
@@ -229,6 +558,9 @@ public final class SQLiteStatement implements AutoCloseable {
      */
     public long cursorGetLong(int index) {
         assertCursorRowState();
+        if (SQLiteNative.CRITICAL_NATIVES_REGISTERED && isCursorColumn(index)) {
+            return SQLiteNative.nativeCursorGetLongCritical(statementPtr(), index);
+        }
         return SQLiteNative.nativeCursorGetLong(connection.connectionPtr(), statementPtr(), index);
     }
     /**
@@ -239,6 +571,9 @@ public final class SQLiteStatement implements AutoCloseable {
      */
     public double cursorGetDouble(int index) {
         assertCursorRowState();
+        if (SQLiteNative.CRITICAL_NATIVES_REGISTERED && isCursorColumn(index)) {
+            return SQLiteNative.nativeCursorGetDoubleCritical(statementPtr(), index);
+        }
         return SQLiteNative.nativeCursorGetDouble(connection.connectionPtr(), statementPtr(), index);
     }
     /**
@@ -251,6 +586,31 @@ public final class SQLiteStatement implements AutoCloseable {
         assertCursorRowState();
         return SQLiteNative.nativeCursorGetString(connection.connectionPtr(), statementPtr(), index);
     }
+    /**
+     * Get TEXT on the current row in specified column and append it to {@code out}.
+     * If the stored type is not TEXT, it will be converted.
+     * Unlike {@link #cursorGetString(int)}, this does not allocate a new String for each value,
+     * so reusing the builder for a whole scan is cheaper for short text columns.
+     * @param index starts at 0
+     * @return false if the value is NULL, in which case nothing is appended
+     */
+    public boolean cursorGetString(int index, @NotNull StringBuilder out) {
+        assertCursorRowState();
+        final long connectionPtr = connection.connectionPtr();
+        final long statementPtr = statementPtr();
+        byte[] scratch = utf8Scratch;
+        if (scratch == null) {
+            utf8Scratch = scratch = new byte[256];
+        }
+        int length = SQLiteNative.nativeCursorGetUtf8(connectionPtr, statementPtr, index, scratch);
+        if (length < 0) return false;
+        if (length > scratch.length) {
+            utf8Scratch = scratch = new byte[Math.max(length, scratch.length * 2)];
+            length = SQLiteNative.nativeCursorGetUtf8(connectionPtr, statementPtr, index, scratch);
+        }
+        Utf8.decode(scratch, length, out);
+        return true;
+    }
     /**
      * Get BLOB on the current row in specified column.
      * If the stored type is not BLOB, it will be converted.
@@ -262,20 +622,92 @@ public final class SQLiteStatement implements AutoCloseable {
         return SQLiteNative.nativeCursorGetBlob(connection.connectionPtr(), statementPtr(), index);
     }
 
+    /**
+     * Get length of BLOB on the current row in specified column.
+     * If the stored type is not BLOB, it will be converted.
+     * @param index starts at 0
+     * @return length in bytes or -1 if the value is NULL
+     */
+    public int cursorGetBlobLength(int index) {
+        assertCursorRowState();
+        return SQLiteNative.nativeCursorGetBlobLength(connection.connectionPtr(), statementPtr(), index);
+    }
+    /**
+     * Copy BLOB on the current row in specified column into {@code dst}, starting at {@code offset}.
+     * If the stored type is not BLOB, it will be converted.
+     * Nothing is copied if the value does not fit into the array, in that case the returned length
+     * is greater than {@code dst.length - offset}, so a bigger array can be provided and the call repeated.
+     * @param index starts at 0
+     * @return length of the value in bytes or -1 if the value is NULL
+     */
+    public int cursorGetBlob(int index, @NotNull byte[] dst, int offset) {
+        assertCursorRowState();
+        if (offset < 0 || offset > dst.length) throw new IndexOutOfBoundsException("offset " + offset + " of " + dst.length);
+        return SQLiteNative.nativeCursorGetBlobIntoArray(connection.connectionPtr(), statementPtr(), index, dst, offset, dst.length);
+    }
+    /**
+     * Copy BLOB on the current row in specified column into {@code dst}, at its position.
+     * If the stored type is not BLOB, it will be converted.
+     * When the value fits into the remaining space, the position is advanced by its length.
+     * Otherwise nothing is copied and the returned length is greater than {@link ByteBuffer#remaining()},
+     * so a bigger buffer can be provided and the call repeated.
+     * @param index starts at 0
+     * @return length of the value in bytes or -1 if the value is NULL
+     */
+    public int cursorGetBlob(int index, @NotNull ByteBuffer dst) {
+        assertCursorRowState();
+        if (dst.isReadOnly()) throw new ReadOnlyBufferException();
+        final int position = dst.position();
+        final int length;
+        if (dst.isDirect()) {
+            length = SQLiteNative.nativeCursorGetBlobIntoBuffer(connection.connectionPtr(), statementPtr(), index, dst, position, dst.limit());
+        } else {
+            final int arrayOffset = dst.arrayOffset();
+            length = SQLiteNative.nativeCursorGetBlobIntoArray(connection.connectionPtr(), statementPtr(), index, dst.array(), arrayOffset + position, arrayOffset + dst.limit());
+        }
+        if (length > 0 && length <= dst.remaining()) {
+            dst.position(position + length);
+        }
+        return length;
+    }
+
     void close(long connectionPtr) throws SQLiteException {
         final long ptr = statementPtr;
         if (ptr == 0) return;// Already deleted
         SQLiteNative.nativeFinalizeStatement(connectionPtr, ptr);
         statementPtr = 0;
+        boundBuffers = null;
+    }
+
+    boolean isClosed() {
+        return statementPtr == 0;
+    }
+
+    /** Reset the cursor, if the statement is in cursor mode. */
+    void resetCursor() {
+        if (state != STATE_NORMAL) {
+            cursorReset();
+        }
+    }
+
+    /** Reset and clear the statement before returning it to the statement cache. */
+    void resetForCache() {
+        resetCursor();
+        clearBindings();
     }
 
     /**
      * Close the statement, releasing its resources.
+     * Statements from {@link SQLiteConnection#cachedStatement(String)} are returned to the cache instead
+     * and must not be used afterwards.
      * Repeated calls are no-ops.
      * @throws SQLiteException shouldn't happen
      */
     @Override
     public void close() throws SQLiteException {
+        if (cacheKey != null && statementPtr != 0 && connection.returnToCache(this)) {
+            return;
+        }
         close(connection.connectionPtr());
 
         // It is managed, delete it from management tracking list
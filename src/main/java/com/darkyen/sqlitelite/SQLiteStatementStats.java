@@ -0,0 +1,60 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Snapshot of runtime counters of a single {@link SQLiteStatement}, obtained from {@link SQLiteStatement#stats(boolean)}.
+ * Counters accumulate over all executions of the statement since it was prepared or since the last reset.
+ * High {@link #fullscanSteps}, {@link #sorts} or {@link #autoindexes} suggest that the statement is missing an index.
+ * @see <a href="https://www.sqlite.org/c3ref/c_stmtstatus_counter.html">SQLite documentation</a>
+ */
+public final class SQLiteStatementStats {
+    /* Order must match sStatementStatusOps in SQLiteNative.cpp */
+    static final int COUNTER_COUNT = 9;
+
+    /** Number of times SQLite has stepped forward in a table as part of a full table scan (SQLITE_STMTSTATUS_FULLSCAN_STEP) */
+    public final long fullscanSteps;
+    /** Number of sort operations (SQLITE_STMTSTATUS_SORT) */
+    public final long sorts;
+    /** Number of rows inserted into transient indices that were created automatically (SQLITE_STMTSTATUS_AUTOINDEX) */
+    public final long autoindexes;
+    /** Number of virtual machine operations executed (SQLITE_STMTSTATUS_VM_STEP) */
+    public final long vmSteps;
+    /** Number of times the statement was automatically regenerated, because of schema changes (SQLITE_STMTSTATUS_REPREPARE) */
+    public final long reprepares;
+    /** Number of times the statement has run to completion or was reset (SQLITE_STMTSTATUS_RUN) */
+    public final long runs;
+    /** Number of times a join step was bypassed because a Bloom filter returned not-found (SQLITE_STMTSTATUS_FILTER_HIT) */
+    public final long filterHits;
+    /** Number of times a Bloom filter returned a find, which turned out to be a false positive (SQLITE_STMTSTATUS_FILTER_MISS) */
+    public final long filterMisses;
+    /** Approximate number of bytes of heap memory used by the statement, not affected by reset (SQLITE_STMTSTATUS_MEMUSED) */
+    public final long memoryUsed;
+
+    SQLiteStatementStats(@NotNull long[] counters) {
+        fullscanSteps = counters[0];
+        sorts = counters[1];
+        autoindexes = counters[2];
+        vmSteps = counters[3];
+        reprepares = counters[4];
+        runs = counters[5];
+        filterMisses = counters[6];
+        filterHits = counters[7];
+        memoryUsed = counters[8];
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteStatementStats{" +
+                "fullscanSteps=" + fullscanSteps +
+                ", sorts=" + sorts +
+                ", autoindexes=" + autoindexes +
+                ", vmSteps=" + vmSteps +
+                ", reprepares=" + reprepares +
+                ", runs=" + runs +
+                ", filterHits=" + filterHits +
+                ", filterMisses=" + filterMisses +
+                ", memoryUsed=" + memoryUsed +
+                '}';
+    }
+}
@@ -0,0 +1,226 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs write tasks from any thread on a single connection, on its own worker thread,
+ * grouping tasks that arrive close together into one transaction (group commit).
+ * The cost of a commit (mainly the fsync) is then shared by all tasks of the group.
+ * <p>
+ * The worker waits at most {@code maxDelay} after the first task of a group for more tasks,
+ * and puts at most {@code maxBatchSize} tasks into one group.
+ * Each task runs in its own savepoint, so a task that throws rolls back only its own changes
+ * and its future fails immediately. Futures of successful tasks are completed only after the group is committed.
+ * If the commit fails, all tasks of the group fail.
+ * <p>
+ * The connection must not be used by anything else while the queue is open.
+ * Tasks can begin and end transactions, they are nested in the transaction of the queue.
+ * <p>
+ * Thread safe.
+ */
+public final class SQLiteWriteQueue implements AutoCloseable {
+
+    /** Work to run in the transaction of the queue. */
+    public interface Task<T> {
+        T run(@NotNull SQLiteConnection connection) throws Exception;
+    }
+
+    private static final class Entry<T> {
+        final Task<T> task;
+        final SettableFuture<T> future = new SettableFuture<>();
+        T result;
+
+        Entry(Task<T> task) {
+            this.task = task;
+        }
+
+        void run(SQLiteConnection connection) throws Exception {
+            result = task.run(connection);
+        }
+
+        void complete() {
+            future.set(result);
+        }
+    }
+
+    /** Posted by {@link #close()}, stops the worker */
+    private static final Entry<Void> CLOSE = new Entry<>(null);
+
+    private final SQLiteConnection connection;
+    private final long maxDelayNanos;
+    private final int maxBatchSize;
+    private final LinkedBlockingQueue<Entry<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private boolean closed = false;
+
+    /**
+     * Start a queue with its worker thread.
+     * @param connection used exclusively by the queue until it is closed, must not be in a transaction
+     * @param maxDelay how long to wait for more tasks after the first one arrives, 0 groups only tasks that are already waiting
+     * @param maxBatchSize maximum amount of tasks in one transaction
+     */
+    public SQLiteWriteQueue(@NotNull SQLiteConnection connection, long maxDelay, @NotNull TimeUnit unit, int maxBatchSize) {
+        if (maxDelay < 0) throw new IllegalArgumentException("maxDelay must not be negative");
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be positive");
+        if (connection.inTransaction()) throw new IllegalArgumentException("Connection is in transaction");
+        this.connection = connection;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxBatchSize = maxBatchSize;
+        worker = new Thread(this::workerLoop, "SQLiteWriteQueue");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue the task.
+     * @return future completed with the result of the task once its transaction is committed,
+     * can be cancelled until the task starts
+     * @throws IllegalStateException if the queue is closed
+     */
+    public <T> @NotNull Future<T> submit(@NotNull Task<T> task) {
+        final Entry<T> entry = new Entry<>(task);
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Queue is closed");
+            queue.add(entry);
+        }
+        return entry.future;
+    }
+
+    private void workerLoop() {
+        final ArrayList<Entry<?>> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;// Only close() stops the worker
+            }
+
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            final long deadline = System.nanoTime() + maxDelayNanos;
+            while (batch.size() < maxBatchSize && batch.get(batch.size() - 1) != CLOSE) {
+                final long remainingNanos = deadline - System.nanoTime();
+                final Entry<?> entry;
+                try {
+                    entry = remainingNanos > 0 ? queue.poll(remainingNanos, TimeUnit.NANOSECONDS) : queue.poll();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (entry == null) break;
+                batch.add(entry);
+            }
+
+            if (batch.get(batch.size() - 1) == CLOSE) {
+                batch.remove(batch.size() - 1);
+                running = false;
+            }
+
+            int next = 0;
+            while (next < batch.size()) {
+                next = runTransaction(batch, next);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Run tasks of the batch from {@code start} in one transaction.
+     * @return index of the first task that did not run, because the transaction had to be abandoned
+     */
+    private int runTransaction(@NotNull ArrayList<Entry<?>> batch, int start) {
+        try {
+            connection.beginTransactionImmediate();
+        } catch (Throwable e) {
+            for (int i = start; i < batch.size(); i++) {
+                batch.get(i).future.fail(e);
+            }
+            return batch.size();
+        }
+
+        final ArrayList<Entry<?>> succeeded = new ArrayList<>(batch.size() - start);
+        int next = start;
+        while (next < batch.size()) {
+            final Entry<?> entry = batch.get(next++);
+            if (!entry.future.start()) continue;// Cancelled
+
+            try {
+                connection.savepoint();
+            } catch (Throwable e) {
+                entry.future.fail(e);
+                abandonTransaction(succeeded, e);
+                return next;
+            }
+
+            try {
+                entry.run(connection);
+                connection.releaseSavepoint();
+                succeeded.add(entry);
+            } catch (Throwable e) {
+                entry.future.fail(e);
+                try {
+                    connection.rollbackToSavepoint();
+                    connection.releaseSavepoint();
+                } catch (Throwable rollbackE) {
+                    // The transaction is not usable anymore, SQLite may have already rolled it back
+                    abandonTransaction(succeeded, rollbackE);
+                    return next;
+                }
+            }
+        }
+
+        try {
+            connection.setTransactionSuccessful();
+            connection.endTransaction();
+        } catch (Throwable e) {
+            abandonTransaction(succeeded, e);
+            return next;
+        }
+        for (Entry<?> entry : succeeded) {
+            entry.complete();
+        }
+        return next;
+    }
+
+    private void abandonTransaction(@NotNull ArrayList<Entry<?>> succeeded, @NotNull Throwable cause) {
+        try {
+            connection.abortTransaction();
+        } catch (Throwable e) {
+            // Already rolled back by SQLite
+        }
+        for (Entry<?> entry : succeeded) {
+            entry.future.fail(cause);
+        }
+    }
+
+    /**
+     * Stop accepting tasks, run all tasks that are already queued and stop the worker thread.
+     * Blocks until the worker is stopped. Does not close the connection.
+     * Repeated calls are no-ops.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                queue.add(CLOSE);
+            }
+        }
+        if (Thread.currentThread() == worker) return;// Closed from a task, the worker stops after this batch
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                worker.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
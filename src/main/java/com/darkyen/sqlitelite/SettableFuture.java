@@ -0,0 +1,120 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Minimal {@link Future} completed by a worker thread.
+ * (CompletableFuture is not available before API 24.)
+ * Can be cancelled before the worker starts it. While it runs, cancelling only requests an interrupt
+ * through {@link #interruptRunning()}, the work is then considered cancelled only if it fails with {@link SQLiteInterruptedException}.
+ */
+class SettableFuture<T> implements Future<T> {
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_FAILED = 3;
+    private static final int STATE_CANCELLED = 4;
+
+    private int state = STATE_PENDING;
+    /** Whether {@link #interruptRunning()} was called for this run */
+    private boolean interruptRequested = false;
+    private T value;
+    private Throwable failure;
+
+    /** Called by the worker before running the work.
+     * @return false if cancelled, the work must not run */
+    synchronized boolean start() {
+        if (state != STATE_PENDING) return false;
+        state = STATE_RUNNING;
+        return true;
+    }
+
+    synchronized void set(T value) {
+        if (state > STATE_RUNNING) return;
+        this.value = value;
+        state = STATE_DONE;
+        notifyAll();
+    }
+
+    synchronized void fail(@NotNull Throwable failure) {
+        if (state > STATE_RUNNING) return;
+        this.failure = failure;
+        // Work which survived the interrupt, or failed for another reason, reports its real outcome
+        state = interruptRequested && failure instanceof SQLiteInterruptedException ? STATE_CANCELLED : STATE_FAILED;
+        notifyAll();
+    }
+
+    /**
+     * Called when the future is cancelled with mayInterruptIfRunning while the work runs.
+     * @return true if an interrupt was requested
+     */
+    boolean interruptRunning() {
+        return false;
+    }
+
+    /**
+     * Cancels the work if it has not started yet.
+     * If it runs and mayInterruptIfRunning, it is interrupted, but false is returned,
+     * because the work may still complete. It becomes cancelled when it fails with {@link SQLiteInterruptedException}.
+     */
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (state == STATE_PENDING) {
+            state = STATE_CANCELLED;
+            notifyAll();
+            return true;
+        }
+        if (state == STATE_RUNNING && mayInterruptIfRunning && !interruptRequested) {
+            interruptRequested = interruptRunning();
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state > STATE_RUNNING;
+    }
+
+    private T result() throws ExecutionException {
+        switch (state) {
+            case STATE_DONE:
+                return value;
+            case STATE_FAILED:
+                throw new ExecutionException(failure);
+            case STATE_CANCELLED:
+                throw new CancellationException();
+            default:
+                throw new AssertionError("state " + state);
+        }
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (state <= STATE_RUNNING) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, @NotNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state <= STATE_RUNNING) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return result();
+    }
+}
@@ -0,0 +1,68 @@
+package com.darkyen.sqlitelite;
+
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SQL of a statement that can be used with any connection, typically with connections leased from {@link SQLiteConnectionPool}.
+ * Each connection prepares its own {@link SQLiteStatement} for it on first use and keeps it until the connection is closed,
+ * so the lookup is just an array access.
+ * <p>
+ * Create shared statements once and keep them (for example in static fields), because each one
+ * takes up a slot in every connection that has used it, even after the shared statement is no longer reachable.
+ * <p>
+ * Thread safe, but statements obtained through {@link #on(SQLiteConnection)} belong to the connection and are not.
+ */
+public final class SharedStatement {
+    private static final AtomicInteger NEXT_INDEX = new AtomicInteger();
+
+    /** Index into per-connection statement arrays */
+    final int index;
+    /** SQL of the statement */
+    public final @NotNull String sql;
+    /** Flags used when preparing, always includes {@link SQLiteConnection#SQLITE_PREPARE_PERSISTENT} */
+    public final int prepFlags;
+
+    /**
+     * @param sql one SQL command, without trailing semicolon
+     * @param prepFlags combination of SQLITE_PREPARE_* flags, {@link SQLiteConnection#SQLITE_PREPARE_PERSISTENT} is always added
+     * @see SQLiteConnection#statement(String, int)
+     */
+    public SharedStatement(
+            @NotNull
+            @Language("RoomSql"/*Should be just SQL, but that is not supported on community :( */)
+            String sql, int prepFlags) {
+        this.index = NEXT_INDEX.getAndIncrement();
+        this.sql = sql;
+        this.prepFlags = prepFlags | SQLiteConnection.SQLITE_PREPARE_PERSISTENT;
+    }
+
+    /**
+     * @param sql one SQL command, without trailing semicolon
+     */
+    public SharedStatement(
+            @NotNull
+            @Language("RoomSql"/*Should be just SQL, but that is not supported on community :( */)
+            String sql) {
+        this(sql, 0);
+    }
+
+    /**
+     * Get the statement prepared for given connection, preparing it if this is the first use on that connection.
+     * If the statement was left in cursor mode by the previous user, the cursor is reset. Bindings are kept.
+     * <p>
+     * The statement belongs to the connection and is closed with it, there is no need to close it.
+     * If it is closed anyway, it is prepared again on the next call.
+     * @throws android.database.sqlite.SQLiteException if the statement can't be prepared
+     */
+    public @NotNull SQLiteStatement on(@NotNull SQLiteConnection connection) {
+        return connection.sharedStatement(this);
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+}
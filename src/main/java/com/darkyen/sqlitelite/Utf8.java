@@ -0,0 +1,64 @@
+package com.darkyen.sqlitelite;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * UTF-8 decoding without intermediate allocations.
+ * Behaves like the native decoder in SQLiteNative.cpp, malformed sequences are replaced with U+FFFD.
+ */
+final class Utf8 {
+    private Utf8() {}
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    /** Decode first {@code length} bytes of {@code bytes} and append them to {@code out}. */
+    static void decode(@NotNull byte[] bytes, int length, @NotNull StringBuilder out) {
+        out.ensureCapacity(out.length() + length);
+        int i = 0;
+        // Most text is ASCII, handle it in a tight loop
+        while (i < length && bytes[i] >= 0) {
+            out.append((char) bytes[i++]);
+        }
+        while (i < length) {
+            final int b = bytes[i++] & 0xFF;
+            if (b < 0x80) {
+                out.append((char) b);
+                continue;
+            }
+
+            int codePoint;
+            final int continuation;
+            final int minimum;
+            if ((b & 0xE0) == 0xC0) {
+                codePoint = b & 0x1F;
+                continuation = 1;
+                minimum = 0x80;
+            } else if ((b & 0xF0) == 0xE0) {
+                codePoint = b & 0x0F;
+                continuation = 2;
+                minimum = 0x800;
+            } else if ((b & 0xF8) == 0xF0) {
+                codePoint = b & 0x07;
+                continuation = 3;
+                minimum = 0x10000;
+            } else {
+                out.append(REPLACEMENT);
+                continue;
+            }
+
+            int c = 0;
+            for (; c < continuation && i < length && (bytes[i] & 0xC0) == 0x80; c++, i++) {
+                codePoint = (codePoint << 6) | (bytes[i] & 0x3F);
+            }
+            if (c != continuation || codePoint < minimum || codePoint > 0x10FFFF
+                    || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                out.append(REPLACEMENT);
+            } else if (codePoint >= 0x10000) {
+                out.append(Character.highSurrogate(codePoint));
+                out.append(Character.lowSurrogate(codePoint));
+            } else {
+                out.append((char) codePoint);
+            }
+        }
+    }
+}
@@ -16,7 +16,6 @@ sqlite_flags := \
     -DSQLITE_MAX_EXPR_DEPTH=0 \
     -DSQLITE_OMIT_DECLTYPE \
     -DSQLITE_OMIT_DEPRECATED \
-    -DSQLITE_OMIT_PROGRESS_CALLBACK \
     -DSQLITE_OMIT_SHARED_CACHE \
     -DSQLITE_USE_ALLOCA \
     -DSQLITE_OMIT_AUTOINIT \
@@ -35,7 +34,6 @@ sqlite_flags := \
     -DSQLITE_ENABLE_BATCH_ATOMIC_WRITE \
     -DSQLITE_DISABLE_DIRSYNC \
     -DSQLITE_OMIT_DESERIALIZE \
-    -DSQLITE_OMIT_TRACE \
     -DSQLITE_OMIT_LOAD_EXTENSION \
     -Os
 
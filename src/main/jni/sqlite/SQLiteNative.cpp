@@ -18,8 +18,13 @@
 #define LOG_TAG "SQLiteConnection"
 
 #include <jni.h>
+#include <stdio.h>
 #include <string.h>
 #include <stdlib.h>
+#include <stdint.h>
+#include <time.h>
+#include <sched.h>
+#include <sys/system_properties.h>
 
 #include "sqlite3ex.h"
 #include "JNIHelp.h"
@@ -28,20 +33,6 @@
 
 namespace android {
 
-/* Busy timeout in milliseconds.
- * If another connection (possibly in another process) has the database locked for
- * longer than this amount of time then SQLite will generate a SQLITE_BUSY error.
- * The SQLITE_BUSY error is then raised as a SQLiteDatabaseLockedException.
- *
- * In ordinary usage, busy timeouts are quite rare.  Most databases only ever
- * have a single open connection at a time unless they are using WAL.  When using
- * WAL, a timeout could occur if one connection is busy performing an auto-checkpoint
- * operation.  The busy timeout needs to be long enough to tolerate slow I/O write
- * operations but not so long as to cause the application to hang indefinitely if
- * there is a problem acquiring a database lock.
- */
-static const int BUSY_TIMEOUT_MS = 2500;
-
 // Limit heap to 8MB for now.  This is 4 times the maximum cursor window
 // size, as has been used by the original code in SQLiteDatabase for
 // a long time.
@@ -61,7 +52,7 @@ static void sqliteLogCallback(void* data, int iErrCode, const char* zMsg) {
 
 // Sets the global SQLite configuration.
 // This must be called before any other SQLite functions are called.
-static void sqliteInitialize() {
+static void sqliteInitialize(bool memoryStatus) {
     // Enable multi-threaded mode.  In this mode, SQLite is safe to use by multiple
     // threads as long as no two threads use the same database connection at the same
     // time (which we guarantee in the SQLite database wrappers).
@@ -79,10 +70,20 @@ static void sqliteInitialize() {
     // set to. The limit does not, as of 3.5.0, affect any other allocations.
     sqlite3_soft_heap_limit(SOFT_HEAP_LIMIT);
 
+    // Memory accounting is compiled off by default (SQLITE_DEFAULT_MEMSTATUS=0),
+    // because it serializes all allocations on a global mutex.
+    if (memoryStatus) {
+        sqlite3_config(SQLITE_CONFIG_MEMSTATUS, 1);
+    }
+
     // Initialize SQLite.
     sqlite3_initialize();
 }
 
+static void nativeInitialize(JNIEnv* env, jclass clazz, jboolean memoryStatus) {
+    sqliteInitialize(memoryStatus);
+}
+
 static jint nativeReleaseMemory(JNIEnv* env, jclass clazz) {
     return sqlite3_release_memory(SOFT_HEAP_LIMIT);
 }
@@ -105,14 +106,6 @@ static jlong nativeOpen(JNIEnv* env, jclass clazz, jstring pathStr, jint openFla
         return 0;
     }
 
-    // Set the default busy handler to retry automatically before returning SQLITE_BUSY.
-    err = sqlite3_busy_timeout(dbConnection, BUSY_TIMEOUT_MS);
-    if (err != SQLITE_OK) {
-        throw_sqlite3_exception(env, dbConnection, "Could not set busy timeout");
-        sqlite3_close(dbConnection);
-        return 0;
-    }
-
     return reinterpret_cast<jlong>(dbConnection);
 }
 
@@ -131,12 +124,375 @@ static void nativeClose(JNIEnv* env, jclass clazz, jlong connectionPtr) {
     }
 }
 
-static sqlite3_stmt* prepareStatement(JNIEnv* env, sqlite3* dbConnection, jstring sqlString) {
+static int64_t monotonicNanos() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+/* Must match SQLiteBusyHandler */
+static const int BUSY_STRATEGY_FAIL = 0;
+static const int BUSY_STRATEGY_SPIN_YIELD = 1;
+static const int BUSY_STRATEGY_BACKOFF = 2;
+
+/* Counters in the order of SQLiteStatementStats */
+static const int sStatementStatusOps[] = {
+    SQLITE_STMTSTATUS_FULLSCAN_STEP,
+    SQLITE_STMTSTATUS_SORT,
+    SQLITE_STMTSTATUS_AUTOINDEX,
+    SQLITE_STMTSTATUS_VM_STEP,
+    SQLITE_STMTSTATUS_REPREPARE,
+    SQLITE_STMTSTATUS_RUN,
+    SQLITE_STMTSTATUS_FILTER_MISS,
+    SQLITE_STMTSTATUS_FILTER_HIT,
+    SQLITE_STMTSTATUS_MEMUSED,
+};
+static const int STATEMENT_STATUS_COUNT = sizeof(sStatementStatusOps) / sizeof(sStatementStatusOps[0]);
+
+/* Statement execution recorded by SQLITE_TRACE_PROFILE */
+struct ProfileEvent {
+    sqlite3_stmt* statement;
+    int64_t nanos;
+};
+
+/* Statement execution which took longer than the slow query threshold, waiting to be reported */
+struct SlowQuery {
+    SlowQuery* next;
+    /* Copy of sqlite3_sql */
+    char* sql;
+    /* From sqlite3_expanded_sql, may be NULL */
+    char* expandedSql;
+    int64_t nanos;
+    jlong counters[STATEMENT_STATUS_COUNT];
+};
+
+/* Slow queries beyond this amount are dropped until the pending ones are reported */
+static const int SLOW_QUERY_MAX_PENDING = 32;
+
+static void freeSlowQuery(SlowQuery* query) {
+    free(query->sql);
+    sqlite3_free(query->expandedSql);
+    free(query);
+}
+
+/* Per-connection state for callbacks registered with SQLite, owned by the Java SQLiteConnection.
+ * Freed only after the connection is closed, so that no callback can see it freed. */
+struct ConnectionState {
+    int busyStrategy;
+    int busySpinCount;
+    int64_t busyInitialDelayNanos;
+    int64_t busyMaxDelayNanos;
+    int64_t busyTimeoutNanos;
+    /* When the first busy handler call of the current lock attempt happened */
+    int64_t busyStartNanos;
+    /* Statistics, read from other threads */
+    int64_t busyInvocations;
+    int64_t busyWaitNanos;
+
+    /* Ring buffer of profiled statement executions with profileCapacity slots, NULL when profiling is disabled */
+    ProfileEvent* profileEvents;
+    int64_t profileCapacity;
+    /* Amount of events ever recorded, sequence number of the next event */
+    int64_t profileWritten;
+    /* Sequence number of the oldest event which was not drained yet (may have been overwritten since) */
+    int64_t profileRead;
+
+    /* Executions which take at least this long are captured as slow queries, 0 to disable */
+    int64_t slowThresholdNanos;
+    /* Captured slow queries in the order of capture */
+    SlowQuery* slowHead;
+    SlowQuery* slowTail;
+    int slowPending;
+
+    /* Maximum duration of a statement execution, 0 for no limit */
+    int64_t queryBudgetNanos;
+    /* When the most recently started statement started, on CLOCK_MONOTONIC */
+    int64_t statementStartNanos;
+    /* The statement whose run started at statementStartNanos, until the run ends, otherwise NULL */
+    sqlite3_stmt* timedStatement;
+    /* Statements fail once CLOCK_MONOTONIC reaches deadlineNanos, if hasDeadline */
+    bool hasDeadline;
+    int64_t deadlineNanos;
+};
+
+static jlong nativeCreateConnectionState(JNIEnv* env, jclass clazz) {
+    ConnectionState* state = static_cast<ConnectionState*>(calloc(1, sizeof(ConnectionState)));
+    if (!state) {
+        jniThrowException(env, "java/lang/OutOfMemoryError", "ConnectionState");
+        return 0;
+    }
+    return reinterpret_cast<jlong>(state);
+}
+
+static void discardSlowQueries(ConnectionState* state) {
+    SlowQuery* query = state->slowHead;
+    while (query) {
+        SlowQuery* next = query->next;
+        freeSlowQuery(query);
+        query = next;
+    }
+    state->slowHead = NULL;
+    state->slowTail = NULL;
+    state->slowPending = 0;
+}
+
+static void nativeFreeConnectionState(JNIEnv* env, jclass clazz, jlong statePtr) {
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    free(state->profileEvents);
+    discardSlowQueries(state);
+    free(state);
+}
+
+// Called by SQLite when a table is locked, returns 0 to give up with SQLITE_BUSY, non-zero to try again.
+static int busyHandlerCallback(void* data, int count) {
+    ConnectionState* state = static_cast<ConnectionState*>(data);
+    __atomic_add_fetch(&state->busyInvocations, 1, __ATOMIC_RELAXED);
+    if (state->busyStrategy == BUSY_STRATEGY_FAIL) {
+        return 0;
+    }
+
+    const int64_t start = monotonicNanos();
+    if (count == 0) {
+        state->busyStartNanos = start;
+    }
+    const int64_t remaining = state->busyTimeoutNanos - (start - state->busyStartNanos);
+    if (remaining <= 0) {
+        return 0;
+    }
+
+    if (state->busyStrategy == BUSY_STRATEGY_SPIN_YIELD) {
+        if (count < state->busySpinCount) {
+            // The lock is likely to be released very soon, don't give up the CPU yet
+            for (volatile int i = 0; i < 64; i++) {}
+        } else {
+            sched_yield();
+        }
+    } else {
+        int64_t delay = state->busyInitialDelayNanos << (count < 30 ? count : 30);
+        if (delay > state->busyMaxDelayNanos || delay <= 0) delay = state->busyMaxDelayNanos;
+        if (delay > remaining) delay = remaining;
+        struct timespec sleep;
+        sleep.tv_sec = (time_t) (delay / 1000000000LL);
+        sleep.tv_nsec = (long) (delay % 1000000000LL);
+        nanosleep(&sleep, NULL);
+    }
+
+    __atomic_add_fetch(&state->busyWaitNanos, monotonicNanos() - start, __ATOMIC_RELAXED);
+    return 1;
+}
+
+static void nativeSetBusyHandler(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statePtr,
+        jint strategy, jint spinCount, jlong initialDelayNanos, jlong maxDelayNanos, jlong timeoutNanos) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    state->busyStrategy = strategy;
+    state->busySpinCount = spinCount;
+    state->busyInitialDelayNanos = initialDelayNanos;
+    state->busyMaxDelayNanos = maxDelayNanos;
+    state->busyTimeoutNanos = timeoutNanos;
+
+    int err = sqlite3_busy_handler(dbConnection, busyHandlerCallback, state);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, "Could not set busy handler");
+    }
+}
+
+static jlong nativeBusyInvocations(JNIEnv* env, jclass clazz, jlong statePtr) {
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    return __atomic_load_n(&state->busyInvocations, __ATOMIC_RELAXED);
+}
+
+static jlong nativeBusyWaitNanos(JNIEnv* env, jclass clazz, jlong statePtr) {
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    return __atomic_load_n(&state->busyWaitNanos, __ATOMIC_RELAXED);
+}
+
+// Copy everything about the statement while it still has its bindings, the report is built later, from Java.
+static void captureSlowQuery(ConnectionState* state, sqlite3_stmt* statement, int64_t nanos) {
+    if (state->slowPending >= SLOW_QUERY_MAX_PENDING) {
+        return;
+    }
+    SlowQuery* query = static_cast<SlowQuery*>(calloc(1, sizeof(SlowQuery)));
+    if (!query) {
+        return;
+    }
+    const char* sql = sqlite3_sql(statement);
+    query->sql = strdup(sql ? sql : "");
+    if (!query->sql) {
+        free(query);
+        return;
+    }
+    query->expandedSql = sqlite3_expanded_sql(statement);
+    query->nanos = nanos;
+    for (int i = 0; i < STATEMENT_STATUS_COUNT; i++) {
+        query->counters[i] = sqlite3_stmt_status(statement, sStatementStatusOps[i], 0);
+    }
+
+    if (state->slowTail) {
+        state->slowTail->next = query;
+    } else {
+        state->slowHead = query;
+    }
+    state->slowTail = query;
+    state->slowPending++;
+}
+
+// Called by SQLite on the thread which runs the statement, must be cheap.
+static int traceCallback(unsigned type, void* data, void* p, void* x) {
+    ConnectionState* state = static_cast<ConnectionState*>(data);
+    if (type == SQLITE_TRACE_STMT) {
+        // Also called at the start of each trigger, with the statement which fired it, that is not a new run
+        if (state->timedStatement != p) {
+            state->timedStatement = static_cast<sqlite3_stmt*>(p);
+            state->statementStartNanos = monotonicNanos();
+        }
+        return 0;
+    }
+    if (type == SQLITE_TRACE_PROFILE && state->timedStatement == p) {
+        // The run has ended, the next one of the same statement starts anew
+        state->timedStatement = NULL;
+    }
+    if (type == SQLITE_TRACE_PROFILE && state->profileEvents) {
+        // Overwrites the oldest event when full, drain notices that from the sequence numbers
+        ProfileEvent* event = &state->profileEvents[state->profileWritten % state->profileCapacity];
+        event->statement = static_cast<sqlite3_stmt*>(p);
+        event->nanos = *static_cast<sqlite3_int64*>(x);
+        state->profileWritten++;
+    }
+    if (type == SQLITE_TRACE_PROFILE && state->slowThresholdNanos > 0
+            && *static_cast<sqlite3_int64*>(x) >= state->slowThresholdNanos) {
+        captureSlowQuery(state, static_cast<sqlite3_stmt*>(p), *static_cast<sqlite3_int64*>(x));
+    }
+    return 0;
+}
+
+// Register the trace callback for the events which are needed by the current settings, or unregister it.
+static void updateTrace(JNIEnv* env, sqlite3* dbConnection, ConnectionState* state) {
+    unsigned mask = 0;
+    if (state->profileEvents || state->slowThresholdNanos > 0) mask |= SQLITE_TRACE_PROFILE;
+    // Profile events end the runs of the budgeted statements
+    if (state->queryBudgetNanos > 0) mask |= SQLITE_TRACE_STMT | SQLITE_TRACE_PROFILE;
+    int err = sqlite3_trace_v2(dbConnection, mask, mask ? traceCallback : NULL, state);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, "Could not set trace callback");
+    }
+}
+
+static void nativeSetProfiling(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statePtr, jint capacity) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    free(state->profileEvents);
+    state->profileEvents = NULL;
+    state->profileCapacity = 0;
+    state->profileRead = state->profileWritten;
+
+    if (capacity > 0) {
+        ProfileEvent* events = static_cast<ProfileEvent*>(malloc(capacity * sizeof(ProfileEvent)));
+        if (!events) {
+            updateTrace(env, dbConnection, state);
+            jniThrowException(env, "java/lang/OutOfMemoryError", "Profile buffer");
+            return;
+        }
+        state->profileEvents = events;
+        state->profileCapacity = capacity;
+    }
+    updateTrace(env, dbConnection, state);
+}
+
+/* How many virtual machine operations run between checks of the time limits */
+static const int PROGRESS_CHECK_INTERVAL = 1000;
+
+// Called by SQLite every PROGRESS_CHECK_INTERVAL operations, returns non-zero to interrupt the statement.
+static int progressCallback(void* data) {
+    ConnectionState* state = static_cast<ConnectionState*>(data);
+    const int64_t now = monotonicNanos();
+    if (state->hasDeadline && now >= state->deadlineNanos) {
+        return 1;
+    }
+    if (state->queryBudgetNanos > 0 && now - state->statementStartNanos >= state->queryBudgetNanos) {
+        return 1;
+    }
+    return 0;
+}
+
+static void updateProgressHandler(sqlite3* dbConnection, ConnectionState* state) {
+    if (state->hasDeadline || state->queryBudgetNanos > 0) {
+        sqlite3_progress_handler(dbConnection, PROGRESS_CHECK_INTERVAL, progressCallback, state);
+    } else {
+        sqlite3_progress_handler(dbConnection, 0, NULL, NULL);
+    }
+}
+
+static void nativeSetQueryBudget(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statePtr, jlong budgetNanos) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    state->queryBudgetNanos = budgetNanos > 0 ? budgetNanos : 0;
+    // Statements which are already running count from now, the end of their run may not be reported
+    state->statementStartNanos = monotonicNanos();
+    state->timedStatement = NULL;
+    updateTrace(env, dbConnection, state);
+    updateProgressHandler(dbConnection, state);
+}
+
+static void nativeSetDeadline(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statePtr,
+        jboolean hasDeadline, jlong deadlineNanos) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    state->hasDeadline = hasDeadline;
+    state->deadlineNanos = deadlineNanos;
+    updateProgressHandler(dbConnection, state);
+}
+
+static jlong nativeProfileWritten(JNIEnv* env, jclass clazz, jlong statePtr) {
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    return state->profileWritten;
+}
+
+static void nativeSetSlowQueryThreshold(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statePtr, jlong thresholdNanos) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    state->slowThresholdNanos = thresholdNanos > 0 ? thresholdNanos : 0;
+    if (state->slowThresholdNanos == 0) {
+        discardSlowQueries(state);
+    }
+    updateTrace(env, dbConnection, state);
+}
+
+/* Must match SQLiteConnection.PROFILE_DRAIN_BATCH */
+static const int PROFILE_DRAIN_BATCH = 64;
+
+/* Fills out with the sequence number of the first drained event, amount of events overwritten before they were drained
+ * and then (statement pointer, nanoseconds) pairs of up to PROFILE_DRAIN_BATCH events. Returns the amount of events. */
+static jint nativeDrainProfile(JNIEnv* env, jclass clazz, jlong statePtr, jlongArray out) {
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    jlong values[2 + PROFILE_DRAIN_BATCH * 2];
+    int64_t overwritten = 0;
+    int64_t oldest = state->profileWritten - state->profileCapacity;
+    if (state->profileRead < oldest) {
+        overwritten = oldest - state->profileRead;
+        state->profileRead = oldest;
+    }
+
+    int64_t count = state->profileWritten - state->profileRead;
+    if (count > PROFILE_DRAIN_BATCH) count = PROFILE_DRAIN_BATCH;
+    values[0] = state->profileRead;
+    values[1] = overwritten;
+    for (int64_t i = 0; i < count; i++) {
+        const ProfileEvent& event = state->profileEvents[(state->profileRead + i) % state->profileCapacity];
+        values[2 + i * 2] = reinterpret_cast<jlong>(event.statement);
+        values[3 + i * 2] = event.nanos;
+    }
+    state->profileRead += count;
+    env->SetLongArrayRegion(out, 0, (jsize) (2 + count * 2), values);
+    return (jint) count;
+}
+
+static sqlite3_stmt* prepareStatement(JNIEnv* env, sqlite3* dbConnection, jstring sqlString, unsigned int prepFlags) {
     jsize sqlLength = env->GetStringLength(sqlString);
     const jchar* sql = env->GetStringCritical(sqlString, NULL);
     sqlite3_stmt* statement;
-    int err = sqlite3_prepare16_v2(dbConnection,
-            sql, sqlLength * sizeof(jchar), &statement, NULL);
+    int err = sqlite3_prepare16_v3(dbConnection,
+            sql, sqlLength * sizeof(jchar), prepFlags, &statement, NULL);
     env->ReleaseStringCritical(sqlString, sql);
 
     if (err == SQLITE_OK) {
@@ -147,9 +503,9 @@ static sqlite3_stmt* prepareStatement(JNIEnv* env, sqlite3* dbConnection, jstrin
     return NULL;
 }
 
-static jlong nativePrepareStatement(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring sqlString) {
+static jlong nativePrepareStatement(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring sqlString, jint prepFlags) {
     sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
-    sqlite3_stmt* statement = prepareStatement(env, dbConnection, sqlString);
+    sqlite3_stmt* statement = prepareStatement(env, dbConnection, sqlString, (unsigned int) prepFlags);
 
     if (statement != 0) {
         ALOGV("Prepared statement %p on connection %p", statement, dbConnection);
@@ -234,9 +590,124 @@ static void nativeBindBlob(JNIEnv* env, jclass clazz, jlong connectionPtr,
     }
 }
 
+/* Strings up to this many UTF-16 units are decoded into a stack buffer, longer ones into a heap buffer */
+static const size_t UTF8_STACK_BUFFER = 256;
+static const jchar UTF8_REPLACEMENT = 0xFFFD;
+
+/* Decode UTF-8 into UTF-16, replacing malformed sequences with U+FFFD.
+ * The output must have room for at least as many units as there are input bytes.
+ * Returns the amount of written UTF-16 units. */
+static size_t decodeUtf8(const uint8_t* in, size_t length, jchar* out) {
+    size_t i = 0;
+    size_t o = 0;
+    // Most text is ASCII, handle it in a tight loop
+    while (i < length && in[i] < 0x80) {
+        out[o++] = in[i++];
+    }
+    while (i < length) {
+        uint32_t b = in[i++];
+        if (b < 0x80) {
+            out[o++] = (jchar) b;
+            continue;
+        }
+
+        uint32_t codePoint;
+        size_t continuation;
+        uint32_t minimum;
+        if ((b & 0xE0) == 0xC0) {
+            codePoint = b & 0x1F;
+            continuation = 1;
+            minimum = 0x80;
+        } else if ((b & 0xF0) == 0xE0) {
+            codePoint = b & 0x0F;
+            continuation = 2;
+            minimum = 0x800;
+        } else if ((b & 0xF8) == 0xF0) {
+            codePoint = b & 0x07;
+            continuation = 3;
+            minimum = 0x10000;
+        } else {
+            out[o++] = UTF8_REPLACEMENT;
+            continue;
+        }
+
+        size_t c = 0;
+        for (; c < continuation && i < length && (in[i] & 0xC0) == 0x80; c++, i++) {
+            codePoint = (codePoint << 6) | (in[i] & 0x3F);
+        }
+        if (c != continuation || codePoint < minimum || codePoint > 0x10FFFF
+                || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+            out[o++] = UTF8_REPLACEMENT;
+        } else if (codePoint >= 0x10000) {
+            codePoint -= 0x10000;
+            out[o++] = (jchar) (0xD800 + (codePoint >> 10));
+            out[o++] = (jchar) (0xDC00 + (codePoint & 0x3FF));
+        } else {
+            out[o++] = (jchar) codePoint;
+        }
+    }
+    return o;
+}
+
+/* Create a String from UTF-8 text. NewStringUTF can't be used, because it expects modified UTF-8. */
+static jstring utf8ToString(JNIEnv* env, const uint8_t* text, size_t length) {
+    if (text == NULL || length == 0) {
+        return env->NewString(NULL, 0);
+    }
+
+    jchar stackBuffer[UTF8_STACK_BUFFER];
+    jchar* buffer = stackBuffer;
+    if (length > UTF8_STACK_BUFFER) {
+        buffer = static_cast<jchar*>(malloc(length * sizeof(jchar)));
+        if (buffer == NULL) {
+            jniThrowException(env, "java/lang/OutOfMemoryError", "Failed to allocate string buffer");
+            return NULL;
+        }
+    }
+    size_t decodedLength = decodeUtf8(text, length, buffer);
+    jstring result = env->NewString(buffer, (jsize) decodedLength);
+    if (buffer != stackBuffer) {
+        free(buffer);
+    }
+    return result;
+}
+
+/* Create a String from the UTF-8 text of the column, which saves SQLite from transcoding it to UTF-16 first. */
+static jstring columnTextToString(JNIEnv* env, sqlite3_stmt* statement, int index) {
+    const uint8_t* text = static_cast<const uint8_t*>(sqlite3_column_text(statement, index));
+    size_t length = sqlite3_column_bytes(statement, index);
+    return utf8ToString(env, text, length);
+}
+
+static void nativeBindBlobRegion(JNIEnv* env, jclass clazz, jlong connectionPtr,
+        jlong statementPtr, jint index, jbyteArray valueArray, jint offset, jint length) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+
+    jbyte* value = static_cast<jbyte*>(env->GetPrimitiveArrayCritical(valueArray, NULL));
+    int err = sqlite3_bind_blob(statement, index, value + offset, length, SQLITE_TRANSIENT);
+    env->ReleasePrimitiveArrayCritical(valueArray, value, JNI_ABORT);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, NULL);
+    }
+}
+
+/* The buffer is not copied, the caller must keep it alive and unchanged while it is bound. */
+static void nativeBindBlobDirect(JNIEnv* env, jclass clazz, jlong connectionPtr,
+        jlong statementPtr, jint index, jobject valueBuffer, jint position, jint length) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+
+    const uint8_t* base = static_cast<const uint8_t*>(env->GetDirectBufferAddress(valueBuffer));
+    int err = sqlite3_bind_blob(statement, index, base + position, length, SQLITE_STATIC);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, NULL);
+    }
+}
+
 static jstring nativeExecutePragma(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring sqlString) {
     sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
-    sqlite3_stmt* statement = prepareStatement(env, dbConnection, sqlString);
+    sqlite3_stmt* statement = prepareStatement(env, dbConnection, sqlString, 0);
     if (statement == 0) return NULL;
 
     int err = sqlite3_step(statement);
@@ -344,9 +815,7 @@ static jstring nativeExecuteForStringOrNullAndReset(JNIEnv* env, jclass clazz, j
         if (sqlite3_column_count(statement) != 1) {
             throw_sqlite3_exception(env, dbConnection, "Expected exactly one column");
         } else {
-            const jchar* text = static_cast<const jchar*>(sqlite3_column_text16(statement, 0));
-            size_t length = sqlite3_column_bytes16(statement, 0) / sizeof(jchar);
-            result = env->NewString(text, length);
+            result = columnTextToString(env, statement, 0);
 
             if (sqlite3_step(statement) != SQLITE_DONE) {
                 throw_sqlite3_exception(env, dbConnection, "Got more than one row");
@@ -415,6 +884,23 @@ static jlong nativeExecuteForChangedRowsAndReset(JNIEnv* env, jclass clazz, jlon
     return result;
 }
 
+/* Variants of the execute methods for expected failures, which return the result code instead of throwing */
+static jint nativeTryExecuteAndReset(JNIEnv* env, jclass clazz, jlong statementPtr) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    int err = sqlite3_step(statement);
+    sqlite3_reset(statement);
+    return err == SQLITE_DONE ? SQLITE_OK : err;
+}
+/* Returns the amount of changed rows or the negated result code */
+static jlong nativeTryExecuteForChangedRowsAndReset(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    int err = sqlite3_step(statement);
+    jlong result = err == SQLITE_DONE ? (jlong) sqlite3_changes64(dbConnection) : -(jlong) err;
+    sqlite3_reset(statement);
+    return result;
+}
+
 static jboolean nativeCursorStep(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr) {
     sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
     sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
@@ -459,9 +945,27 @@ static jstring nativeCursorGetString(JNIEnv* env, jclass clazz, jlong connection
     int type = sqlite3_column_type(statement, index);
     jstring result = NULL;
     if (type != SQLITE_NULL) {
-        const jchar* text = static_cast<const jchar*>(sqlite3_column_text16(statement, index));
-        size_t length = sqlite3_column_bytes16(statement, index) / sizeof(jchar);
-        result = env->NewString(text, length);
+        result = columnTextToString(env, statement, index);
+    }
+
+    maybe_throw_after_column_get(env, dbConnection);
+    return result;
+}
+/* Copy the UTF-8 text of the column into the array, if it fits.
+ * Returns the length of the text in bytes (even when it does not fit) or -1 for NULL. */
+static jint nativeCursorGetUtf8(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint index, jbyteArray outArray) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    sqlite3ex_clear_errcode(dbConnection);
+
+    int type = sqlite3_column_type(statement, index);
+    jint result = -1;
+    if (type != SQLITE_NULL) {
+        const void* text = sqlite3_column_text(statement, index);
+        result = sqlite3_column_bytes(statement, index);
+        if (result > 0 && result <= env->GetArrayLength(outArray)) {
+            env->SetByteArrayRegion(outArray, 0, result, static_cast<const jbyte*>(text));
+        }
     }
 
     maybe_throw_after_column_get(env, dbConnection);
@@ -487,6 +991,458 @@ static jbyteArray nativeCursorGetBlob(JNIEnv* env, jclass clazz, jlong connectio
     return result;
 }
 
+static jint nativeCursorGetBlobLength(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint index) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    sqlite3ex_clear_errcode(dbConnection);
+
+    int type = sqlite3_column_type(statement, index);
+    jint result = -1;
+    if (type != SQLITE_NULL) {
+        sqlite3_column_blob(statement, index);// Force conversion, so that the length matches the other blob getters
+        result = sqlite3_column_bytes(statement, index);
+    }
+
+    maybe_throw_after_column_get(env, dbConnection);
+    return result;
+}
+/* Copy the BLOB of the column into the array between offset and end, if it fits.
+ * Returns the length of the BLOB (even when it does not fit) or -1 for NULL. */
+static jint nativeCursorGetBlobIntoArray(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint index,
+        jbyteArray outArray, jint offset, jint end) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    sqlite3ex_clear_errcode(dbConnection);
+
+    int type = sqlite3_column_type(statement, index);
+    jint result = -1;
+    if (type != SQLITE_NULL) {
+        const void* blob = sqlite3_column_blob(statement, index);
+        result = sqlite3_column_bytes(statement, index);
+        if (result > 0 && result <= end - offset) {
+            env->SetByteArrayRegion(outArray, offset, result, static_cast<const jbyte*>(blob));
+        }
+    }
+
+    maybe_throw_after_column_get(env, dbConnection);
+    return result;
+}
+/* Copy the BLOB of the column into the direct buffer between position and limit, if it fits.
+ * Returns the length of the BLOB (even when it does not fit) or -1 for NULL. */
+static jint nativeCursorGetBlobIntoBuffer(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr, jint index,
+        jobject outBuffer, jint position, jint limit) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    sqlite3ex_clear_errcode(dbConnection);
+
+    int type = sqlite3_column_type(statement, index);
+    jint result = -1;
+    if (type != SQLITE_NULL) {
+        const void* blob = sqlite3_column_blob(statement, index);
+        result = sqlite3_column_bytes(statement, index);
+        if (result > 0 && result <= limit - position) {
+            uint8_t* base = static_cast<uint8_t*>(env->GetDirectBufferAddress(outBuffer));
+            memcpy(base + position, blob, result);
+        }
+    }
+
+    maybe_throw_after_column_get(env, dbConnection);
+    return result;
+}
+
+/* Columns are read into fixed size stack buffers in chunks of this size */
+static const int ROW_INTO_CHUNK = 64;
+
+static jboolean nativeCursorStepInto(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr,
+        jboolean stepFirst, jlongArray longsArray, jdoubleArray doublesArray, jobjectArray refsArray) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    if (stepFirst) {
+        int err = sqlite3_step(statement);
+        if (err == SQLITE_DONE) {
+            return JNI_FALSE;
+        } else if (err != SQLITE_ROW) {
+            throw_sqlite3_exception(env, dbConnection, NULL);
+            return JNI_FALSE;
+        }
+    }
+
+    int columns = sqlite3_data_count(statement);
+    int longCount = longsArray == NULL ? 0 : env->GetArrayLength(longsArray);
+    int doubleCount = doublesArray == NULL ? 0 : env->GetArrayLength(doublesArray);
+    int refCount = refsArray == NULL ? 0 : env->GetArrayLength(refsArray);
+    if (longCount > columns) longCount = columns;
+    if (doubleCount > columns) doubleCount = columns;
+    if (refCount > columns) refCount = columns;
+    int readColumns = longCount > doubleCount ? longCount : doubleCount;
+    if (refCount > readColumns) readColumns = refCount;
+
+    sqlite3ex_clear_errcode(dbConnection);
+    jlong longs[ROW_INTO_CHUNK];
+    jdouble doubles[ROW_INTO_CHUNK];
+    for (int chunkStart = 0; chunkStart < readColumns; chunkStart += ROW_INTO_CHUNK) {
+        int chunkEnd = chunkStart + ROW_INTO_CHUNK < readColumns ? chunkStart + ROW_INTO_CHUNK : readColumns;
+        for (int c = chunkStart; c < chunkEnd; c++) {
+            jlong longValue = 0;
+            jdouble doubleValue = 0.0;
+            jobject ref = NULL;
+            switch (sqlite3_column_type(statement, c)) {
+                case SQLITE_INTEGER:
+                    longValue = (jlong) sqlite3_column_int64(statement, c);
+                    doubleValue = (jdouble) longValue;
+                    break;
+                case SQLITE_FLOAT:
+                    doubleValue = (jdouble) sqlite3_column_double(statement, c);
+                    longValue = (jlong) sqlite3_column_int64(statement, c);
+                    break;
+                case SQLITE_TEXT:
+                    if (c < refCount) {
+                        ref = columnTextToString(env, statement, c);
+                        if (ref == NULL) return JNI_FALSE;// OOM
+                    }
+                    break;
+                case SQLITE_BLOB:
+                    if (c < refCount) {
+                        const void* blob = sqlite3_column_blob(statement, c);
+                        size_t length = sqlite3_column_bytes(statement, c);
+                        jbyteArray array = env->NewByteArray(length);
+                        if (array == NULL) return JNI_FALSE;// OOM
+                        if (length > 0) {
+                            env->SetByteArrayRegion(array, 0, (jsize) length, static_cast<const jbyte*>(blob));
+                        }
+                        ref = array;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            longs[c - chunkStart] = longValue;
+            doubles[c - chunkStart] = doubleValue;
+            if (c < refCount) {
+                env->SetObjectArrayElement(refsArray, c, ref);
+                if (ref != NULL) env->DeleteLocalRef(ref);
+            }
+        }
+        if (chunkStart < longCount) {
+            int end = chunkEnd < longCount ? chunkEnd : longCount;
+            env->SetLongArrayRegion(longsArray, chunkStart, end - chunkStart, longs);
+        }
+        if (chunkStart < doubleCount) {
+            int end = chunkEnd < doubleCount ? chunkEnd : doubleCount;
+            env->SetDoubleArrayRegion(doublesArray, chunkStart, end - chunkStart, doubles);
+        }
+    }
+
+    maybe_throw_after_column_get(env, dbConnection);
+    return JNI_TRUE;
+}
+
+static jint nativeColumnCount(JNIEnv* env, jclass clazz, jlong statementPtr) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    return sqlite3_column_count(statement);
+}
+
+static void nativeStatementStatus(JNIEnv* env, jclass clazz, jlong statementPtr, jboolean reset, jlongArray out) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    jlong values[STATEMENT_STATUS_COUNT];
+    for (int i = 0; i < STATEMENT_STATUS_COUNT; i++) {
+        values[i] = sqlite3_stmt_status(statement, sStatementStatusOps[i], reset ? 1 : 0);
+    }
+    env->SetLongArrayRegion(out, 0, STATEMENT_STATUS_COUNT, values);
+}
+
+static jstring nativeStatementSql(JNIEnv* env, jclass clazz, jlong statementPtr) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    const char* sql = sqlite3_sql(statement);
+    return utf8ToString(env, reinterpret_cast<const uint8_t*>(sql), sql ? strlen(sql) : 0);
+}
+
+/* Removes the oldest captured slow query, fills values with its nanoseconds and STATEMENT_STATUS_COUNT counters
+ * and sqlOut with its SQL and expanded SQL. Returns false if there is none. */
+static jboolean nativePopSlowQuery(JNIEnv* env, jclass clazz, jlong statePtr, jlongArray values, jobjectArray sqlOut) {
+    ConnectionState* state = reinterpret_cast<ConnectionState*>(statePtr);
+    SlowQuery* query = state->slowHead;
+    if (!query) {
+        return JNI_FALSE;
+    }
+    state->slowHead = query->next;
+    if (!state->slowHead) {
+        state->slowTail = NULL;
+    }
+    state->slowPending--;
+
+    jlong nanos = query->nanos;
+    env->SetLongArrayRegion(values, 0, 1, &nanos);
+    env->SetLongArrayRegion(values, 1, STATEMENT_STATUS_COUNT, query->counters);
+    jstring sql = utf8ToString(env, reinterpret_cast<const uint8_t*>(query->sql), strlen(query->sql));
+    if (sql) {
+        env->SetObjectArrayElement(sqlOut, 0, sql);
+        env->DeleteLocalRef(sql);
+    }
+    if (query->expandedSql && !env->ExceptionCheck()) {
+        jstring expandedSql = utf8ToString(env, reinterpret_cast<const uint8_t*>(query->expandedSql), strlen(query->expandedSql));
+        if (expandedSql) {
+            env->SetObjectArrayElement(sqlOut, 1, expandedSql);
+            env->DeleteLocalRef(expandedSql);
+        }
+    }
+    freeSlowQuery(query);
+    return JNI_TRUE;
+}
+
+/* Layout of the RowWindow buffer, must be kept in sync with RowWindow.java.
+ * Header is followed by cells of consecutive rows, which grow from the start of the buffer,
+ * while TEXT (as UTF-16) and BLOB data grow from the end of the buffer towards the cells. */
+struct RowWindowHeader {
+    jint rowCount;
+    jint columnCount;
+    jint reserved[2];
+};
+struct RowWindowCell {
+    /* SQLITE_INTEGER, SQLITE_FLOAT, SQLITE_TEXT, SQLITE_BLOB or SQLITE_NULL */
+    jint type;
+    /* Length of TEXT or BLOB data in bytes */
+    jint length;
+    /* INTEGER value, bits of FLOAT value or offset of TEXT or BLOB data from the buffer start */
+    jlong value;
+};
+static const jint ROW_WINDOW_MORE = 0;
+static const jint ROW_WINDOW_DONE = 1;
+static const jint ROW_WINDOW_PENDING = 2;
+
+/* Write the current row into the window.
+ * Returns false if it does not fit, in which case the window is left as it was. */
+static bool fillWindowRow(sqlite3_stmt* statement, int columns, uint8_t* base, size_t* cellEnd, size_t* dataStart) {
+    size_t cellOffset = *cellEnd;
+    size_t dataOffset = *dataStart;
+    if (cellOffset + columns * sizeof(RowWindowCell) > dataOffset) return false;
+
+    for (int c = 0; c < columns; c++) {
+        RowWindowCell cell;
+        cell.type = sqlite3_column_type(statement, c);
+        cell.length = 0;
+        cell.value = 0;
+        switch (cell.type) {
+            case SQLITE_INTEGER:
+                cell.value = (jlong) sqlite3_column_int64(statement, c);
+                break;
+            case SQLITE_FLOAT: {
+                double value = sqlite3_column_double(statement, c);
+                memcpy(&cell.value, &value, sizeof(value));
+                break;
+            }
+            case SQLITE_TEXT:
+            case SQLITE_BLOB: {
+                const void* data;
+                size_t length;
+                if (cell.type == SQLITE_TEXT) {
+                    data = sqlite3_column_text16(statement, c);
+                    length = sqlite3_column_bytes16(statement, c);
+                } else {
+                    data = sqlite3_column_blob(statement, c);
+                    length = sqlite3_column_bytes(statement, c);
+                }
+                // Keep the data aligned, so that the text can be read through a CharBuffer view
+                size_t alignedLength = (length + 7) & ~(size_t) 7;
+                size_t freeSpace = dataOffset - (cellOffset + (columns - c) * sizeof(RowWindowCell));
+                if (alignedLength > freeSpace) return false;
+                dataOffset -= alignedLength;
+                if (length > 0) {
+                    memcpy(base + dataOffset, data, length);
+                }
+                cell.length = (jint) length;
+                cell.value = (jlong) dataOffset;
+                break;
+            }
+            default:
+                break;
+        }
+        memcpy(base + cellOffset, &cell, sizeof(cell));
+        cellOffset += sizeof(cell);
+    }
+
+    *cellEnd = cellOffset;
+    *dataStart = dataOffset;
+    return true;
+}
+
+static jint nativeCursorFillWindow(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr,
+        jobject windowBuffer, jint maxRows, jboolean stepFirst) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    uint8_t* base = static_cast<uint8_t*>(env->GetDirectBufferAddress(windowBuffer));
+    size_t capacity = (size_t) env->GetDirectBufferCapacity(windowBuffer);
+
+    RowWindowHeader header;
+    header.rowCount = 0;
+    header.columnCount = sqlite3_column_count(statement);
+    header.reserved[0] = 0;
+    header.reserved[1] = 0;
+
+    size_t cellEnd = sizeof(RowWindowHeader);
+    size_t dataStart = capacity & ~(size_t) 7;
+    jint status = ROW_WINDOW_MORE;
+    while (header.rowCount < maxRows) {
+        if (stepFirst) {
+            int err = sqlite3_step(statement);
+            if (err == SQLITE_DONE) {
+                status = ROW_WINDOW_DONE;
+                break;
+            } else if (err != SQLITE_ROW) {
+                throw_sqlite3_exception(env, dbConnection, NULL);
+                status = ROW_WINDOW_DONE;
+                break;
+            }
+        }
+        stepFirst = JNI_TRUE;
+        header.columnCount = sqlite3_data_count(statement);
+
+        sqlite3ex_clear_errcode(dbConnection);
+        bool fits = fillWindowRow(statement, header.columnCount, base, &cellEnd, &dataStart);
+        int err = sqlite3_extended_errcode(dbConnection);
+        if (err != SQLITE_OK) {
+            throw_sqlite3_exception(env, err, sqlite3_errmsg(dbConnection), "Column get failed");
+            status = ROW_WINDOW_DONE;
+            break;
+        }
+        if (!fits) {
+            if (header.rowCount == 0) {
+                throw_sqlite3_exception_errcode(env, SQLITE_TOOBIG, "Row does not fit into the window");
+            }
+            status = ROW_WINDOW_PENDING;
+            break;
+        }
+        header.rowCount++;
+    }
+
+    memcpy(base, &header, sizeof(header));
+    return status;
+}
+
+/* Tags of the ParameterBatch buffer, must be kept in sync with ParameterBatch.java.
+ * Each value is a tag byte, followed by 8 byte INTEGER or FLOAT, or int length and TEXT (as UTF-16) or BLOB data. */
+static const uint8_t BATCH_TAG_INTEGER = 1;
+static const uint8_t BATCH_TAG_FLOAT = 2;
+static const uint8_t BATCH_TAG_TEXT = 3;
+static const uint8_t BATCH_TAG_BLOB = 4;
+static const uint8_t BATCH_TAG_NULL = 5;
+
+static const jint BATCH_RESULT_NONE = 0;
+static const jint BATCH_RESULT_ROW_ID = 1;
+static const jint BATCH_RESULT_CHANGED_ROWS = 2;
+
+/* Results are collected in a stack buffer and copied to the Java array in chunks of this size */
+static const int BATCH_RESULT_CHUNK = 64;
+
+/* Bind the values of a single row, starting at *offset.
+ * Data is bound as static, so the bindings must be cleared before the buffer changes. */
+static int bindBatchRow(sqlite3_stmt* statement, const uint8_t* base, size_t size, size_t* offset, int parameterCount) {
+    size_t o = *offset;
+    for (int p = 1; p <= parameterCount; p++) {
+        if (o >= size) return SQLITE_MISUSE;
+        uint8_t tag = base[o++];
+        int err;
+        switch (tag) {
+            case BATCH_TAG_INTEGER:
+            case BATCH_TAG_FLOAT: {
+                if (o + 8 > size) return SQLITE_MISUSE;
+                if (tag == BATCH_TAG_INTEGER) {
+                    jlong value;
+                    memcpy(&value, base + o, sizeof(value));
+                    err = sqlite3_bind_int64(statement, p, value);
+                } else {
+                    jdouble value;
+                    memcpy(&value, base + o, sizeof(value));
+                    err = sqlite3_bind_double(statement, p, value);
+                }
+                o += 8;
+                break;
+            }
+            case BATCH_TAG_TEXT:
+            case BATCH_TAG_BLOB: {
+                if (o + 4 > size) return SQLITE_MISUSE;
+                jint length;
+                memcpy(&length, base + o, sizeof(length));
+                o += 4;
+                if (length < 0 || o + length > size) return SQLITE_MISUSE;
+                if (tag == BATCH_TAG_TEXT) {
+                    err = sqlite3_bind_text16(statement, p, base + o, length, SQLITE_STATIC);
+                } else {
+                    err = sqlite3_bind_blob(statement, p, base + o, length, SQLITE_STATIC);
+                }
+                o += length;
+                break;
+            }
+            case BATCH_TAG_NULL:
+                err = sqlite3_bind_null(statement, p);
+                break;
+            default:
+                return SQLITE_MISUSE;
+        }
+        if (err != SQLITE_OK) return err;
+    }
+    *offset = o;
+    return SQLITE_OK;
+}
+
+static void nativeExecuteBatch(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong statementPtr,
+        jobject batchBuffer, jint size, jint rowCount, jint parameterCount, jint resultMode, jlongArray resultsArray) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    const uint8_t* base = static_cast<const uint8_t*>(env->GetDirectBufferAddress(batchBuffer));
+
+    jlong results[BATCH_RESULT_CHUNK];
+    int resultsPending = 0;
+    int completedRows = 0;
+    size_t offset = 0;
+    for (; completedRows < rowCount; completedRows++) {
+        int err = bindBatchRow(statement, base, (size_t) size, &offset, parameterCount);
+        if (err == SQLITE_MISUSE) {
+            throw_sqlite3_exception_errcode(env, SQLITE_MISUSE, "Malformed batch");
+            break;
+        } else if (err != SQLITE_OK) {
+            char message[64];
+            snprintf(message, sizeof(message), "Failed to bind batch row %d", completedRows);
+            throw_sqlite3_exception(env, dbConnection, message);
+            break;
+        }
+
+        if (resultMode == BATCH_RESULT_ROW_ID) {
+            sqlite3_set_last_insert_rowid(dbConnection, -1);// To make sure we return -1 when the statement is not insert
+        }
+        err = sqlite3_step(statement);
+        if (err != SQLITE_DONE) {
+            char message[64];
+            snprintf(message, sizeof(message), "Expected 0 rows, batch row %d", completedRows);
+            throw_sqlite3_exception(env, dbConnection, message);
+            sqlite3_reset(statement);
+            break;
+        }
+        sqlite3_reset(statement);
+
+        if (resultMode != BATCH_RESULT_NONE) {
+            results[resultsPending++] = resultMode == BATCH_RESULT_ROW_ID
+                    ? (jlong) sqlite3_last_insert_rowid(dbConnection)
+                    : (jlong) sqlite3_changes64(dbConnection);
+            if (resultsPending == BATCH_RESULT_CHUNK) {
+                env->SetLongArrayRegion(resultsArray, completedRows + 1 - resultsPending, resultsPending, results);
+                resultsPending = 0;
+            }
+        }
+    }
+
+    if (resultsPending > 0) {
+        // Results of the rows executed before an error are still written, the exception is thrown afterwards
+        jthrowable exception = env->ExceptionOccurred();
+        if (exception != NULL) env->ExceptionClear();
+        env->SetLongArrayRegion(resultsArray, completedRows - resultsPending, resultsPending, results);
+        if (exception != NULL) env->Throw(exception);
+    }
+
+    // Bindings point into the batch buffer, which may change after this call
+    sqlite3_clear_bindings(statement);
+}
+
 static void nativeResetStatement(JNIEnv* env, jclass clazz, jlong statementPtr) {
     sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
 
@@ -498,6 +1454,248 @@ static void nativeClearBindings(JNIEnv* env, jclass clazz, jlong statementPtr) {
     sqlite3_clear_bindings(statement);// No need to check error, can't fail
 }
 
+/* Variants of the hottest methods for @CriticalNative registration.
+ * They receive neither JNIEnv nor jclass, so they can't throw. Errors are returned as result codes instead,
+ * and turned into exceptions by nativeErrorException, which works as long as no other call is made on the connection.
+ * The GC can't suspend a thread inside a critical native, so only calls which never block belong here.
+ * sqlite3_step must stay a regular native, it may do disk I/O, sync on commit and sleep in the busy handler. */
+static jint nativeBindLongCritical(jlong statementPtr, jint index, jlong value) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    return sqlite3_bind_int64(statement, index, value);
+}
+static jint nativeBindDoubleCritical(jlong statementPtr, jint index, jdouble value) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    return sqlite3_bind_double(statement, index, value);
+}
+/* Errors are not reported, the caller must check that the column index is valid.
+ * Reading a column as integer or double does not allocate, so that is the only possible error. */
+static jlong nativeCursorGetLongCritical(jlong statementPtr, jint index) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    return (jlong) sqlite3_column_int64(statement, index);
+}
+static jdouble nativeCursorGetDoubleCritical(jlong statementPtr, jint index) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    return (jdouble) sqlite3_column_double(statement, index);
+}
+static void nativeResetStatementCritical(jlong statementPtr) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    sqlite3_reset(statement);
+}
+static void nativeClearBindingsCritical(jlong statementPtr) {
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    sqlite3_clear_bindings(statement);
+}
+
+/* Create (but not throw) the exception for the last error on the connection. */
+static jthrowable nativeErrorException(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring messageStr) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    const char* message = messageStr == NULL ? NULL : env->GetStringUTFChars(messageStr, NULL);
+    throw_sqlite3_exception(env, dbConnection, message);
+    if (message != NULL) {
+        env->ReleaseStringUTFChars(messageStr, message);
+    }
+    jthrowable exception = env->ExceptionOccurred();
+    env->ExceptionClear();
+    return exception;
+}
+
+static bool sCriticalNativesRegistered = false;
+
+static jboolean nativeCriticalNativesRegistered(JNIEnv* env, jclass clazz) {
+    return sCriticalNativesRegistered ? JNI_TRUE : JNI_FALSE;
+}
+
+static jlong nativeBlobOpen(JNIEnv* env, jclass clazz, jlong connectionPtr, jstring databaseStr, jstring tableStr,
+        jstring columnStr, jlong rowId, jboolean writable) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    const char* database = env->GetStringUTFChars(databaseStr, NULL);
+    const char* table = env->GetStringUTFChars(tableStr, NULL);
+    const char* column = env->GetStringUTFChars(columnStr, NULL);
+    sqlite3_blob* blob = NULL;
+    int err = sqlite3_blob_open(dbConnection, database, table, column, rowId, writable ? 1 : 0, &blob);
+    env->ReleaseStringUTFChars(columnStr, column);
+    env->ReleaseStringUTFChars(tableStr, table);
+    env->ReleaseStringUTFChars(databaseStr, database);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, "Could not open blob");
+        return 0;
+    }
+    ALOGV("Opened blob %p on connection %p", blob, dbConnection);
+    return reinterpret_cast<jlong>(blob);
+}
+
+static void nativeBlobClose(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+
+    // Like with statements, the blob is always closed, the error only reports what happened before
+    ALOGV("Closed blob %p on connection %p", blob, dbConnection);
+    int err = sqlite3_blob_close(blob);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, "Failed to close blob");
+    }
+}
+
+static jint nativeBlobBytes(JNIEnv* env, jclass clazz, jlong blobPtr) {
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    return sqlite3_blob_bytes(blob);
+}
+
+static void nativeBlobReopen(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr, jlong rowId) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    int err = sqlite3_blob_reopen(blob, rowId);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, "Could not reopen blob");
+    }
+}
+
+/* Arrays are transferred through a temporary buffer of at most this size,
+ * because holding a critical array reference during I/O would block the GC. */
+static const jint BLOB_TRANSFER_CHUNK = 64 * 1024;
+
+static void nativeBlobReadArray(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr, jint blobOffset,
+        jbyteArray array, jint offset, jint length) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    if (length <= 0) return;
+
+    jint chunkSize = length < BLOB_TRANSFER_CHUNK ? length : BLOB_TRANSFER_CHUNK;
+    jbyte* chunk = static_cast<jbyte*>(malloc(chunkSize));
+    if (chunk == NULL) {
+        jniThrowException(env, "java/lang/OutOfMemoryError", "Failed to allocate blob buffer");
+        return;
+    }
+    for (jint done = 0; done < length; done += chunkSize) {
+        jint size = length - done < chunkSize ? length - done : chunkSize;
+        int err = sqlite3_blob_read(blob, chunk, size, blobOffset + done);
+        if (err != SQLITE_OK) {
+            throw_sqlite3_exception(env, dbConnection, "Blob read failed");
+            break;
+        }
+        env->SetByteArrayRegion(array, offset + done, size, chunk);
+    }
+    free(chunk);
+}
+
+static void nativeBlobWriteArray(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr, jint blobOffset,
+        jbyteArray array, jint offset, jint length) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    if (length <= 0) return;
+
+    jint chunkSize = length < BLOB_TRANSFER_CHUNK ? length : BLOB_TRANSFER_CHUNK;
+    jbyte* chunk = static_cast<jbyte*>(malloc(chunkSize));
+    if (chunk == NULL) {
+        jniThrowException(env, "java/lang/OutOfMemoryError", "Failed to allocate blob buffer");
+        return;
+    }
+    for (jint done = 0; done < length; done += chunkSize) {
+        jint size = length - done < chunkSize ? length - done : chunkSize;
+        env->GetByteArrayRegion(array, offset + done, size, chunk);
+        int err = sqlite3_blob_write(blob, chunk, size, blobOffset + done);
+        if (err != SQLITE_OK) {
+            throw_sqlite3_exception(env, dbConnection, "Blob write failed");
+            break;
+        }
+    }
+    free(chunk);
+}
+
+static void nativeBlobReadBuffer(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr, jint blobOffset,
+        jobject buffer, jint position, jint length) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    uint8_t* base = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+    int err = sqlite3_blob_read(blob, base + position, length, blobOffset);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, "Blob read failed");
+    }
+}
+
+static void nativeBlobWriteBuffer(JNIEnv* env, jclass clazz, jlong connectionPtr, jlong blobPtr, jint blobOffset,
+        jobject buffer, jint position, jint length) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    sqlite3_blob* blob = reinterpret_cast<sqlite3_blob*>(blobPtr);
+    const uint8_t* base = static_cast<const uint8_t*>(env->GetDirectBufferAddress(buffer));
+    int err = sqlite3_blob_write(blob, base + position, length, blobOffset);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dbConnection, "Blob write failed");
+    }
+}
+
+/* Values in the order of SQLiteConnectionStatus, each op contributes its current value, high-water value or both */
+static const int DB_STATUS_CURRENT = 1;
+static const int DB_STATUS_HIGHWATER = 2;
+static const struct {
+    int op;
+    int values;
+} sDbStatusOps[] = {
+    { SQLITE_DBSTATUS_CACHE_HIT, DB_STATUS_CURRENT },
+    { SQLITE_DBSTATUS_CACHE_MISS, DB_STATUS_CURRENT },
+    { SQLITE_DBSTATUS_CACHE_WRITE, DB_STATUS_CURRENT },
+    { SQLITE_DBSTATUS_CACHE_SPILL, DB_STATUS_CURRENT },
+    { SQLITE_DBSTATUS_LOOKASIDE_USED, DB_STATUS_CURRENT | DB_STATUS_HIGHWATER },
+    { SQLITE_DBSTATUS_LOOKASIDE_HIT, DB_STATUS_HIGHWATER },
+    { SQLITE_DBSTATUS_LOOKASIDE_MISS_SIZE, DB_STATUS_HIGHWATER },
+    { SQLITE_DBSTATUS_LOOKASIDE_MISS_FULL, DB_STATUS_HIGHWATER },
+    { SQLITE_DBSTATUS_CACHE_USED, DB_STATUS_CURRENT },
+    { SQLITE_DBSTATUS_CACHE_USED_SHARED, DB_STATUS_CURRENT },
+    { SQLITE_DBSTATUS_SCHEMA_USED, DB_STATUS_CURRENT },
+    { SQLITE_DBSTATUS_STMT_USED, DB_STATUS_CURRENT },
+};
+static const int DB_STATUS_VALUE_COUNT = 13;
+
+static void nativeDbStatus(JNIEnv* env, jclass clazz, jlong connectionPtr, jboolean reset, jlongArray out) {
+    sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
+    jlong values[DB_STATUS_VALUE_COUNT];
+    int count = 0;
+    for (size_t i = 0; i < sizeof(sDbStatusOps) / sizeof(sDbStatusOps[0]); i++) {
+        int current = 0;
+        int highwater = 0;
+        sqlite3_db_status(dbConnection, sDbStatusOps[i].op, &current, &highwater, reset ? 1 : 0);
+        if (sDbStatusOps[i].values & DB_STATUS_CURRENT) values[count++] = current;
+        if (sDbStatusOps[i].values & DB_STATUS_HIGHWATER) values[count++] = highwater;
+    }
+    env->SetLongArrayRegion(out, 0, count, values);
+}
+
+/* Values in the order of SQLiteMemoryStats, same format as sDbStatusOps */
+static constexpr struct {
+    int op;
+    int values;
+} sMemoryStatusOps[] = {
+    { SQLITE_STATUS_MEMORY_USED, DB_STATUS_CURRENT | DB_STATUS_HIGHWATER },
+    { SQLITE_STATUS_MALLOC_COUNT, DB_STATUS_CURRENT | DB_STATUS_HIGHWATER },
+    { SQLITE_STATUS_MALLOC_SIZE, DB_STATUS_HIGHWATER },
+    { SQLITE_STATUS_PAGECACHE_USED, DB_STATUS_CURRENT | DB_STATUS_HIGHWATER },
+    { SQLITE_STATUS_PAGECACHE_OVERFLOW, DB_STATUS_CURRENT | DB_STATUS_HIGHWATER },
+    { SQLITE_STATUS_PAGECACHE_SIZE, DB_STATUS_HIGHWATER },
+};
+static const int MEMORY_STATUS_VALUE_COUNT = 10;
+
+template<typename Op, size_t N>
+static constexpr int statusValueCount(const Op (&ops)[N], size_t i = 0) {
+    return i == N ? 0 : ((ops[i].values & DB_STATUS_CURRENT) ? 1 : 0)
+            + ((ops[i].values & DB_STATUS_HIGHWATER) ? 1 : 0)
+            + statusValueCount(ops, i + 1);
+}
+static_assert(statusValueCount(sMemoryStatusOps) == MEMORY_STATUS_VALUE_COUNT,
+        "sMemoryStatusOps must produce exactly SQLiteMemoryStats.VALUE_COUNT values");
+
+static void nativeMemoryStatus(JNIEnv* env, jclass clazz, jboolean reset, jlongArray out) {
+    jlong values[MEMORY_STATUS_VALUE_COUNT];
+    int count = 0;
+    for (size_t i = 0; i < sizeof(sMemoryStatusOps) / sizeof(sMemoryStatusOps[0]); i++) {
+        sqlite3_int64 current = 0;
+        sqlite3_int64 highwater = 0;
+        sqlite3_status64(sMemoryStatusOps[i].op, &current, &highwater, reset ? 1 : 0);
+        if (sMemoryStatusOps[i].values & DB_STATUS_CURRENT) values[count++] = current;
+        if (sMemoryStatusOps[i].values & DB_STATUS_HIGHWATER) values[count++] = highwater;
+    }
+    env->SetLongArrayRegion(out, 0, count, values);
+}
+
 static void nativeInterrupt(JNIEnv* env, jobject clazz, jlong connectionPtr) {
     sqlite3* dbConnection = reinterpret_cast<sqlite3*>(connectionPtr);
     sqlite3_interrupt(dbConnection);
@@ -510,7 +1708,7 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeOpen },
     { "nativeClose", "(J)V",
             (void*)nativeClose },
-    { "nativePrepareStatement", "(JLjava/lang/String;)J",
+    { "nativePrepareStatement", "(JLjava/lang/String;I)J",
             (void*)nativePrepareStatement },
     { "nativeFinalizeStatement", "(JJ)V",
             (void*)nativeFinalizeStatement },
@@ -524,6 +1722,10 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeBindString },
     { "nativeBindBlob", "(JJI[B)V",
             (void*)nativeBindBlob },
+    { "nativeBindBlobRegion", "(JJI[BII)V",
+            (void*)nativeBindBlobRegion },
+    { "nativeBindBlobDirect", "(JJILjava/nio/ByteBuffer;II)V",
+            (void*)nativeBindBlobDirect },
     { "nativeExecutePragma", "(JLjava/lang/String;)Ljava/lang/String;",
             (void*)nativeExecutePragma },
 
@@ -536,19 +1738,104 @@ static const JNINativeMethod sMethods[] =
     { "nativeExecuteForLastInsertedRowIDAndReset", "(JJ)J", (void*) nativeExecuteForLastInsertedRowIDAndReset },
     { "nativeExecuteForChangedRowsAndReset", "(JJ)J", (void*) nativeExecuteForChangedRowsAndReset },
 
+    { "nativeTryExecuteAndReset", "(J)I", (void*) nativeTryExecuteAndReset },
+    { "nativeTryExecuteForChangedRowsAndReset", "(JJ)J", (void*) nativeTryExecuteForChangedRowsAndReset },
+
     { "nativeCursorStep", "(JJ)Z", (void*) nativeCursorStep },
     { "nativeCursorGetLong", "(JJI)J", (void*) nativeCursorGetLong },
     { "nativeCursorGetDouble", "(JJI)D", (void*) nativeCursorGetDouble },
     { "nativeCursorGetString", "(JJI)Ljava/lang/String;", (void*) nativeCursorGetString },
+    { "nativeCursorGetUtf8", "(JJI[B)I", (void*) nativeCursorGetUtf8 },
     { "nativeCursorGetBlob", "(JJI)[B", (void*) nativeCursorGetBlob },
+    { "nativeCursorGetBlobLength", "(JJI)I", (void*) nativeCursorGetBlobLength },
+    { "nativeCursorGetBlobIntoArray", "(JJI[BII)I", (void*) nativeCursorGetBlobIntoArray },
+    { "nativeCursorGetBlobIntoBuffer", "(JJILjava/nio/ByteBuffer;II)I", (void*) nativeCursorGetBlobIntoBuffer },
+    { "nativeCursorStepInto", "(JJZ[J[D[Ljava/lang/Object;)Z", (void*) nativeCursorStepInto },
+    { "nativeColumnCount", "(J)I", (void*) nativeColumnCount },
+    { "nativeStatementStatus", "(JZ[J)V", (void*) nativeStatementStatus },
+    { "nativeStatementSql", "(J)Ljava/lang/String;", (void*) nativeStatementSql },
+    { "nativeCursorFillWindow", "(JJLjava/nio/ByteBuffer;IZ)I", (void*) nativeCursorFillWindow },
+    { "nativeExecuteBatch", "(JJLjava/nio/ByteBuffer;IIII[J)V", (void*) nativeExecuteBatch },
     { "nativeResetStatement", "(J)V", (void*) nativeResetStatement },
     { "nativeClearBindings", "(J)V", (void*) nativeClearBindings },
 
+    { "nativeErrorException", "(JLjava/lang/String;)Landroid/database/sqlite/SQLiteException;",
+            (void*)nativeErrorException },
+    { "nativeCriticalNativesRegistered", "()Z",
+            (void*)nativeCriticalNativesRegistered },
+    { "nativeBlobOpen", "(JLjava/lang/String;Ljava/lang/String;Ljava/lang/String;JZ)J",
+            (void*)nativeBlobOpen },
+    { "nativeBlobClose", "(JJ)V",
+            (void*)nativeBlobClose },
+    { "nativeBlobBytes", "(J)I",
+            (void*)nativeBlobBytes },
+    { "nativeBlobReopen", "(JJJ)V",
+            (void*)nativeBlobReopen },
+    { "nativeBlobReadArray", "(JJI[BII)V",
+            (void*)nativeBlobReadArray },
+    { "nativeBlobWriteArray", "(JJI[BII)V",
+            (void*)nativeBlobWriteArray },
+    { "nativeBlobReadBuffer", "(JJILjava/nio/ByteBuffer;II)V",
+            (void*)nativeBlobReadBuffer },
+    { "nativeBlobWriteBuffer", "(JJILjava/nio/ByteBuffer;II)V",
+            (void*)nativeBlobWriteBuffer },
+    { "nativeCreateConnectionState", "()J",
+            (void*)nativeCreateConnectionState },
+    { "nativeFreeConnectionState", "(J)V",
+            (void*)nativeFreeConnectionState },
+    { "nativeSetBusyHandler", "(JJIIJJJ)V",
+            (void*)nativeSetBusyHandler },
+    { "nativeBusyInvocations", "(J)J",
+            (void*)nativeBusyInvocations },
+    { "nativeBusyWaitNanos", "(J)J",
+            (void*)nativeBusyWaitNanos },
+    { "nativeDbStatus", "(JZ[J)V",
+            (void*)nativeDbStatus },
+    { "nativeSetProfiling", "(JJI)V",
+            (void*)nativeSetProfiling },
+    { "nativeProfileWritten", "(J)J",
+            (void*)nativeProfileWritten },
+    { "nativeDrainProfile", "(J[J)I",
+            (void*)nativeDrainProfile },
+    { "nativeSetSlowQueryThreshold", "(JJJ)V",
+            (void*)nativeSetSlowQueryThreshold },
+    { "nativePopSlowQuery", "(J[J[Ljava/lang/String;)Z",
+            (void*)nativePopSlowQuery },
+    { "nativeSetQueryBudget", "(JJJ)V",
+            (void*)nativeSetQueryBudget },
+    { "nativeSetDeadline", "(JJZJ)V",
+            (void*)nativeSetDeadline },
     { "nativeInterrupt", "(J)V",
             (void*)nativeInterrupt },
     { "nativeReleaseMemory", "()I",
             (void*)nativeReleaseMemory },
+    { "nativeInitialize", "(Z)V",
+            (void*)nativeInitialize },
+    { "nativeMemoryStatus", "(Z[J)V",
+            (void*)nativeMemoryStatus },
+};
+
+/* Methods annotated with @CriticalNative, supported since Android 8.0 (API 26).
+ * On older versions the annotation is ignored and the methods would be called with the standard JNI signature,
+ * so they are not registered there at all and the Java code keeps using the standard methods. */
+static const JNINativeMethod sCriticalMethods[] =
+{
+    { "nativeBindLongCritical", "(JIJ)I", (void*) nativeBindLongCritical },
+    { "nativeBindDoubleCritical", "(JID)I", (void*) nativeBindDoubleCritical },
+    { "nativeCursorGetLongCritical", "(JI)J", (void*) nativeCursorGetLongCritical },
+    { "nativeCursorGetDoubleCritical", "(JI)D", (void*) nativeCursorGetDoubleCritical },
+    { "nativeResetStatementCritical", "(J)V", (void*) nativeResetStatementCritical },
+    { "nativeClearBindingsCritical", "(J)V", (void*) nativeClearBindingsCritical },
 };
+static const int CRITICAL_NATIVE_MIN_API_LEVEL = 26;
+
+static int deviceApiLevel() {
+    char value[PROP_VALUE_MAX] = {0};
+    if (__system_property_get("ro.build.version.sdk", value) <= 0) {
+        return 0;
+    }
+    return atoi(value);
+}
 
 } // namespace android
 
@@ -558,13 +1845,23 @@ extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
         return JNI_ERR;
     }
 
+    android::register_sqlite3_exception_classes(env);
+
     jclass c = env->FindClass("com/darkyen/sqlitelite/SQLiteNative");
     if (c == NULL) return JNI_ERR;
     if (env->RegisterNatives(c, android::sMethods, sizeof(android::sMethods) / sizeof(JNINativeMethod)) != JNI_OK) {
         return JNI_ERR;
     }
+    if (android::deviceApiLevel() >= android::CRITICAL_NATIVE_MIN_API_LEVEL) {
+        if (env->RegisterNatives(c, android::sCriticalMethods, sizeof(android::sCriticalMethods) / sizeof(JNINativeMethod)) == JNI_OK) {
+            android::sCriticalNativesRegistered = true;
+        } else {
+            // Not fatal, the standard methods will be used instead
+            env->ExceptionClear();
+        }
+    }
 
-    android::sqliteInitialize();
+    // SQLite itself is initialized by nativeInitialize, so that the configuration can be chosen from Java
 
     return JNI_VERSION_1_6;
 }
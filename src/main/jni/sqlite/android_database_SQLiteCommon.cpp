@@ -54,74 +54,117 @@ void throw_sqlite3_exception_errcode(JNIEnv* env, int errcode, const char* messa
     throw_sqlite3_exception(env, errcode, "unknown error", message);
 }
 
-/* throw a SQLiteException for a given error code, sqlite3message, and
-   user message
- */
-void throw_sqlite3_exception(JNIEnv* env, int errcode,
-                             const char* sqlite3Message, const char* message) {
-    const char* exceptionClass;
+/* Exception classes, looked up once by register_sqlite3_exception_classes */
+enum ExceptionClass {
+    EXCEPTION_GENERIC,
+    EXCEPTION_DISK_IO,
+    EXCEPTION_CORRUPT,
+    EXCEPTION_CONSTRAINT,
+    EXCEPTION_ABORT,
+    EXCEPTION_DONE,
+    EXCEPTION_FULL,
+    EXCEPTION_MISUSE,
+    EXCEPTION_ACCESS_PERM,
+    EXCEPTION_DATABASE_LOCKED,
+    EXCEPTION_TABLE_LOCKED,
+    EXCEPTION_READ_ONLY,
+    EXCEPTION_CANT_OPEN,
+    EXCEPTION_BLOB_TOO_BIG,
+    EXCEPTION_RANGE,
+    EXCEPTION_OUT_OF_MEMORY,
+    EXCEPTION_DATATYPE_MISMATCH,
+    EXCEPTION_INTERRUPTED,
+    EXCEPTION_COUNT
+};
+
+static const char* const sExceptionClassNames[EXCEPTION_COUNT] = {
+    "android/database/sqlite/SQLiteException",
+    "android/database/sqlite/SQLiteDiskIOException",
+    "android/database/sqlite/SQLiteDatabaseCorruptException",
+    "android/database/sqlite/SQLiteConstraintException",
+    "android/database/sqlite/SQLiteAbortException",
+    "android/database/sqlite/SQLiteDoneException",
+    "android/database/sqlite/SQLiteFullException",
+    "android/database/sqlite/SQLiteMisuseException",
+    "android/database/sqlite/SQLiteAccessPermException",
+    "android/database/sqlite/SQLiteDatabaseLockedException",
+    "android/database/sqlite/SQLiteTableLockedException",
+    "android/database/sqlite/SQLiteReadOnlyDatabaseException",
+    "android/database/sqlite/SQLiteCantOpenDatabaseException",
+    "android/database/sqlite/SQLiteBlobTooBigException",
+    "android/database/sqlite/SQLiteBindOrColumnIndexOutOfRangeException",
+    "android/database/sqlite/SQLiteOutOfMemoryException",
+    "android/database/sqlite/SQLiteDatatypeMismatchException",
+    "com/darkyen/sqlitelite/SQLiteInterruptedException",
+};
+
+/* Global references to the classes above, NULL when not (yet) found */
+static jclass sExceptionClasses[EXCEPTION_COUNT];
+
+/* Look up all exception classes once, so that throwing does not need FindClass.
+ * Must be called from JNI_OnLoad, where FindClass uses the class loader of the library. */
+void register_sqlite3_exception_classes(JNIEnv* env) {
+    for (int i = 0; i < EXCEPTION_COUNT; i++) {
+        jclass clazz = env->FindClass(sExceptionClassNames[i]);
+        if (clazz == NULL) {
+            // Some classes are missing on old Android versions, SQLiteException is used instead
+            env->ExceptionClear();
+            continue;
+        }
+        sExceptionClasses[i] = static_cast<jclass>(env->NewGlobalRef(clazz));
+        env->DeleteLocalRef(clazz);
+    }
+}
+
+static ExceptionClass exceptionClassOf(int errcode) {
     switch (errcode & 0xff) { /* mask off extended error code */
-        case SQLITE_IOERR:
-            exceptionClass = "android/database/sqlite/SQLiteDiskIOException";
-            break;
+        case SQLITE_IOERR: return EXCEPTION_DISK_IO;
         case SQLITE_CORRUPT:
         case SQLITE_NOTADB: // treat "unsupported file format" error as corruption also
-            exceptionClass = "android/database/sqlite/SQLiteDatabaseCorruptException";
-            break;
-        case SQLITE_CONSTRAINT:
-            exceptionClass = "android/database/sqlite/SQLiteConstraintException";
-            break;
-        case SQLITE_ABORT:
-            exceptionClass = "android/database/sqlite/SQLiteAbortException";
-            break;
-        case SQLITE_DONE:
-            exceptionClass = "android/database/sqlite/SQLiteDoneException";
-            sqlite3Message = NULL; // SQLite error message is irrelevant in this case
-            break;
-        case SQLITE_FULL:
-            exceptionClass = "android/database/sqlite/SQLiteFullException";
-            break;
-        case SQLITE_MISUSE:
-            exceptionClass = "android/database/sqlite/SQLiteMisuseException";
-            break;
-        case SQLITE_PERM:
-            exceptionClass = "android/database/sqlite/SQLiteAccessPermException";
-            break;
-        case SQLITE_BUSY:
-            exceptionClass = "android/database/sqlite/SQLiteDatabaseLockedException";
-            break;
-        case SQLITE_LOCKED:
-            exceptionClass = "android/database/sqlite/SQLiteTableLockedException";
-            break;
-        case SQLITE_READONLY:
-            exceptionClass = "android/database/sqlite/SQLiteReadOnlyDatabaseException";
-            break;
-        case SQLITE_CANTOPEN:
-            exceptionClass = "android/database/sqlite/SQLiteCantOpenDatabaseException";
-            break;
-        case SQLITE_TOOBIG:
-            exceptionClass = "android/database/sqlite/SQLiteBlobTooBigException";
-            break;
-        case SQLITE_RANGE:
-            exceptionClass = "android/database/sqlite/SQLiteBindOrColumnIndexOutOfRangeException";
-            break;
-        case SQLITE_NOMEM:
-            exceptionClass = "android/database/sqlite/SQLiteOutOfMemoryException";
-            break;
-        case SQLITE_MISMATCH:
-            exceptionClass = "android/database/sqlite/SQLiteDatatypeMismatchException";
-            break;
-        case SQLITE_INTERRUPT:
-            exceptionClass = "com/darkyen/sqlitelite/SQLiteInterruptedException";
-            break;
-        default:
-            exceptionClass = "android/database/sqlite/SQLiteException";
-            break;
+            return EXCEPTION_CORRUPT;
+        case SQLITE_CONSTRAINT: return EXCEPTION_CONSTRAINT;
+        case SQLITE_ABORT: return EXCEPTION_ABORT;
+        case SQLITE_DONE: return EXCEPTION_DONE;
+        case SQLITE_FULL: return EXCEPTION_FULL;
+        case SQLITE_MISUSE: return EXCEPTION_MISUSE;
+        case SQLITE_PERM: return EXCEPTION_ACCESS_PERM;
+        case SQLITE_BUSY: return EXCEPTION_DATABASE_LOCKED;
+        case SQLITE_LOCKED: return EXCEPTION_TABLE_LOCKED;
+        case SQLITE_READONLY: return EXCEPTION_READ_ONLY;
+        case SQLITE_CANTOPEN: return EXCEPTION_CANT_OPEN;
+        case SQLITE_TOOBIG: return EXCEPTION_BLOB_TOO_BIG;
+        case SQLITE_RANGE: return EXCEPTION_RANGE;
+        case SQLITE_NOMEM: return EXCEPTION_OUT_OF_MEMORY;
+        case SQLITE_MISMATCH: return EXCEPTION_DATATYPE_MISMATCH;
+        case SQLITE_INTERRUPT: return EXCEPTION_INTERRUPTED;
+        default: return EXCEPTION_GENERIC;
     }
+}
+
+static void throwException(JNIEnv* env, ExceptionClass exceptionClass, const char* message) {
+    jclass clazz = sExceptionClasses[exceptionClass];
+    if (clazz == NULL) clazz = sExceptionClasses[EXCEPTION_GENERIC];
+    if (clazz == NULL) {
+        // Not registered, fall back to lookup by name
+        jniThrowException(env, sExceptionClassNames[EXCEPTION_GENERIC], message);
+        return;
+    }
+
+    if (env->ExceptionCheck()) {
+        // Same as jniThrowException, the new exception replaces the pending one
+        env->ExceptionClear();
+    }
+    env->ThrowNew(clazz, message);
+}
 
-    // check this exception class exists otherwise just default to SQLiteException
-    if (env->FindClass(exceptionClass) == NULL) {
-        exceptionClass = "android/database/sqlite/SQLiteException";
+/* throw a SQLiteException for a given error code, sqlite3message, and
+   user message
+ */
+void throw_sqlite3_exception(JNIEnv* env, int errcode,
+                             const char* sqlite3Message, const char* message) {
+    ExceptionClass exceptionClass = exceptionClassOf(errcode);
+    if (exceptionClass == EXCEPTION_DONE) {
+        sqlite3Message = NULL; // SQLite error message is irrelevant in this case
     }
 
     if (sqlite3Message) {
@@ -129,10 +172,10 @@ void throw_sqlite3_exception(JNIEnv* env, int errcode,
             "%s (code %d)%s%s", sqlite3Message, errcode, 
             (message ? ": " : ""), (message ? message : "")
         );
-        jniThrowException(env, exceptionClass, zFullmsg);
+        throwException(env, exceptionClass, zFullmsg);
         sqlite3_free(zFullmsg);
     } else {
-        jniThrowException(env, exceptionClass, message);
+        throwException(env, exceptionClass, message);
     }
 }
 
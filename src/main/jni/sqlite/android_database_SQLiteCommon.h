@@ -30,6 +30,9 @@
 
 namespace android {
 
+/* Look up and cache the exception classes, call once from JNI_OnLoad */
+void register_sqlite3_exception_classes(JNIEnv* env);
+
 /* throw a SQLiteException with a message appropriate for the error in handle */
 void throw_sqlite3_exception(JNIEnv* env, sqlite3* handle);
 
@@ -0,0 +1,16 @@
+package dalvik.annotation.optimization;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Compile-only stub of the platform annotation, which is hidden from the public android.jar.
+ * It is not packaged, the runtime recognizes the annotation by its name in the dex file (API 26+).
+ * Retention must stay CLASS, like in the platform, so that it is kept in the dex file.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface FastNative {
+}